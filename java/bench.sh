@@ -0,0 +1,30 @@
+#!/bin/bash
+root=$(realpath $(dirname "$0"))
+root=$(dirname $root)
+dbname=$(logname)_db
+
+cd $root/java
+
+# Example: ./bench.sh                          (benchmark the data already loaded)
+#          ./bench.sh 1x ../data 10x ../data10  (reload each CSV directory, then benchmark it)
+# A missing directory for an <n>x scale is first generated from ../data with DatasetScaler.
+# Results go to results/bench-<scale>.json; tune with BENCH_OPTS="--threads 8 --seconds 30".
+#          ./bench.sh load --clients 500 --skew 1.2  (booking rush against the data already loaded)
+mkdir -p bench-bin results
+javac -cp "lib/postgresql-42.1.4.jar" src/*.java bench/*.java -d bench-bin/ || exit 1
+
+if [ "$1" = "load" ]; then
+	shift
+	exec java $JAVA_OPTS -cp lib/*:bench-bin/ LoadGenerator $dbname $PGPORT $(logname) --out results/load.json "$@"
+fi
+if [ $# -eq 0 ]; then
+	java -cp lib/*:bench-bin/ TicketmasterBench $dbname $PGPORT $(logname) --out results/bench-current.json $BENCH_OPTS
+fi
+while [ $# -ge 2 ]; do
+	if [ ! -d "$2" ] && [[ "$1" =~ ^[0-9]+x$ ]]; then
+		java -cp bench-bin/ DatasetScaler ../data "$2" ${1%x} || exit 1
+	fi
+	java -cp lib/*:bench-bin/ TicketmasterBench $dbname $PGPORT $(logname) \
+		--scale $1 --data $2 --out results/bench-$1.json $BENCH_OPTS || exit 1
+	shift 2
+done
@@ -0,0 +1,465 @@
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.PrintWriter;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Locale;
+import java.util.Random;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * This class replays a booking rush against a running database through the
+ * same data-access layer as the menu. A number of clients each pick an
+ * operation from a weighted mix, one after the other, for a fixed time:
+ *
+ * <pre>
+ * book       AddBooking: reserve random free seats of a show
+ * change     ChangeSeatsForBooking: move a seat of a booking made by this run
+ * refund     RemovePayment: cancel such a booking through the PaymentPipeline
+ * itinerary  ListBookingInfoForUser: first page of a user's bookings
+ * search     ListMovieAndShowInfoAtCinemaInDateRange: shows of a movie at a
+ *            cinema over a date range
+ * </pre>
+ *
+ * Users are drawn uniformly from Users. Shows are drawn from the playing shows
+ * with Zipfian popularity (exponent --skew), so a few hot shows take most of
+ * the bookings and their seats are fought over. A booking or exchange that
+ * loses a seat race or a deadlock is retried with a fresh seat map up to
+ * --retries times; conflicts, retries and give-ups are reported per operation
+ * next to throughput and latency percentiles, on standard out and optionally
+ * as JSON.
+ *
+ */
+
+public class LoadGenerator {
+	private static final String DEADLOCK = "40P01";
+
+	static final String[] OPERATIONS = { "book", "change", "refund", "itinerary", "search" };
+	// the menu operation each one stands for, to tag its statements
+	static final String[] OPERATION_NAMES = { "AddBooking", "ChangeSeatsForBooking", "RemovePayment",
+			"ListBookingInfoForUser", "ListMovieAndShowInfoAtCinemaInDateRange" };
+
+	private final Ticketmaster _esql;
+	private final int[] _weights;
+	private final int _totalWeight;
+	private final int _retries;
+	private final int _maxSeats;
+
+	private final List<String> _emails = new ArrayList<String>();
+	private final List<String[]> _titleAndCinema = new ArrayList<String[]>();
+	private long[] _shows;
+	private double[] _popularity;
+	private String _firstDate;
+	private String _lastDate;
+
+	// bookings made by this run that change and refund may work on: bid, sid, sno
+	private final ConcurrentLinkedQueue<long[]> _bookings = new ConcurrentLinkedQueue<long[]>();
+	private final Stats[] _stats = new Stats[OPERATIONS.length];
+
+	public LoadGenerator(Ticketmaster esql, int[] weights, int retries, int maxSeats) {
+		this._esql = esql;
+		this._weights = weights;
+		int total = 0;
+		for (int w : weights)
+			total += w;
+		this._totalWeight = total;
+		this._retries = retries;
+		this._maxSeats = maxSeats;
+		for (int i = 0; i < OPERATIONS.length; i++)
+			this._stats[i] = new Stats(OPERATIONS[i]);
+	}
+
+	/**
+	 * Measurements of one operation.
+	 */
+	static class Stats {
+		final String name;
+		final LatencyHistogram latency = new LatencyHistogram();
+		final AtomicLong conflicts = new AtomicLong();
+		final AtomicLong retries = new AtomicLong();
+		final AtomicLong gaveUp = new AtomicLong();
+		final AtomicLong skipped = new AtomicLong();
+		final AtomicLong errors = new AtomicLong();
+
+		Stats(String name) {
+			this.name = name;
+		}
+	}
+
+	// the operation lost a race; worth retrying with fresh data
+	private static class Conflict extends Exception {
+		private static final long serialVersionUID = 1L;
+
+		Conflict() {
+			super(null, null, false, false);
+		}
+	}
+
+	/**
+	 * Method to sample users, shows and search inputs from the database and
+	 * build the show popularity distribution.
+	 *
+	 * @param users most users to draw from
+	 * @param shows most shows to draw from
+	 * @param skew  Zipf exponent; 0 is uniform
+	 * @throws java.sql.SQLException when the sampling queries failed
+	 */
+	public void prepare(int users, int shows, double skew) throws SQLException {
+		for (List<String> row : this._esql.executeQueryAndReturnResult("select email from users limit ?;", users))
+			this._emails.add(row.get(0));
+		List<Long> sids = new ArrayList<Long>();
+		for (List<String> row : this._esql.executeQueryAndReturnResult("select distinct sid from plays limit ?;", shows))
+			sids.add(Long.parseLong(row.get(0)));
+		// popularity rank must not follow sid order, or the hot shows all sit on one date
+		Collections.shuffle(sids, new Random(42));
+		ShowQuery pairs = new ShowQuery().select("m.title", "c.cname").distinct();
+		for (List<String> row : this._esql.executeQueryAndReturnResult(pairs.sql(), pairs.params()))
+			if (this._titleAndCinema.size() < 1000)
+				this._titleAndCinema.add(new String[] { row.get(0), row.get(1) });
+		List<List<String>> range = this._esql.executeQueryAndReturnResult("select min(sdate), max(sdate) from shows;");
+		this._firstDate = range.get(0).get(0);
+		this._lastDate = range.get(0).get(1);
+		if (this._emails.isEmpty() || sids.isEmpty() || this._titleAndCinema.isEmpty())
+			throw new IllegalStateException("the database holds no users or playing shows to load");
+
+		this._shows = new long[sids.size()];
+		this._popularity = new double[sids.size()];
+		double total = 0;
+		for (int rank = 0; rank < sids.size(); rank++) {
+			this._shows[rank] = sids.get(rank);
+			total += 1 / Math.pow(rank + 1, skew);
+			this._popularity[rank] = total;
+		}
+		for (int rank = 0; rank < sids.size(); rank++)
+			this._popularity[rank] /= total;
+	}
+
+	// inverse of the cumulative Zipf distribution by binary search
+	private long hotShow() {
+		double u = ThreadLocalRandom.current().nextDouble();
+		int lo = 0, hi = this._popularity.length - 1;
+		while (lo < hi) {
+			int mid = (lo + hi) >>> 1;
+			if (this._popularity[mid] < u)
+				lo = mid + 1;
+			else
+				hi = mid;
+		}
+		return this._shows[lo];
+	}
+
+	/**
+	 * Method to run the clients until the time is up.
+	 *
+	 * @param clients number of concurrent clients
+	 * @param millis  how long to run
+	 * @return the elapsed time in nanoseconds
+	 */
+	public long run(int clients, long millis) {
+		final long deadline = System.nanoTime() + millis * 1000000L;
+		final CountDownLatch done = new CountDownLatch(clients);
+		long start = System.nanoTime();
+		for (int i = 0; i < clients; i++) {
+			this._esql.requests().submit(null, new Callable<Void>() {
+				public Void call() {
+					try {
+						while (System.nanoTime() < deadline)
+							step(pickOperation());
+					} finally {
+						done.countDown();
+					}
+					return null;
+				}
+			});
+		}
+		try {
+			done.await();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+		return System.nanoTime() - start;
+	}
+
+	private int pickOperation() {
+		int r = ThreadLocalRandom.current().nextInt(this._totalWeight);
+		for (int i = 0; i < this._weights.length; i++) {
+			r -= this._weights[i];
+			if (r < 0)
+				return i;
+		}
+		return 0;
+	}
+
+	private void step(int op) {
+		Stats stats = this._stats[op];
+		this._esql.setOperation(OPERATION_NAMES[op]);
+		long start = System.nanoTime();
+		try {
+			for (int attempt = 0;; attempt++) {
+				try {
+					if (!attempt(op))
+						stats.skipped.incrementAndGet();
+					break;
+				} catch (Conflict e) {
+					stats.conflicts.incrementAndGet();
+					if (attempt == this._retries) {
+						stats.gaveUp.incrementAndGet();
+						break;
+					}
+					stats.retries.incrementAndGet();
+				}
+			}
+		} catch (SQLException e) {
+			stats.errors.incrementAndGet();
+		} catch (IllegalArgumentException e) {
+			stats.errors.incrementAndGet();
+		}
+		stats.latency.record(System.nanoTime() - start);
+	}
+
+	// false when there was nothing to do, such as a sold out show
+	private boolean attempt(int op) throws SQLException, Conflict {
+		switch (op) {
+			case 0:
+				return book();
+			case 1:
+				return change();
+			case 2:
+				return refund();
+			case 3:
+				this._esql.itinerary().page(pick(this._emails), 0, 50);
+				return true;
+			default:
+				String[] pair = pick(this._titleAndCinema);
+				ShowQuery q = new ShowQuery().select("m.title", "m.duration", "s.sdate", "s.sttime").distinct()
+						.movieTitle(pair[0]).cinemaName(pair[1]).dateBetween(this._firstDate, this._lastDate)
+						.orderBy("s.sdate, s.sttime");
+				this._esql.executeQueryAndReturnResult(q.sql(), q.params());
+				return true;
+		}
+	}
+
+	private boolean book() throws SQLException, Conflict {
+		long sid = hotShow();
+		SeatAvailability.ShowSeats seats = this._esql.seats().show(sid);
+		int[] free = seats == null ? new int[0] : seats.free();
+		if (free.length == 0)
+			return false;
+		int[] snos = sample(free, 1 + ThreadLocalRandom.current().nextInt(this._maxSeats));
+		try {
+			long bid = this._esql.reservations().reserve(pick(this._emails), sid, snos);
+			this._bookings.add(new long[] { bid, sid, snos[0] });
+			return true;
+		} catch (SQLException e) {
+			throw conflictOr(e);
+		}
+	}
+
+	private boolean change() throws SQLException, Conflict {
+		long[] booking = this._bookings.poll();
+		if (booking == null)
+			return false;
+		SeatAvailability.ShowSeats seats = this._esql.seats().show(booking[1]);
+		int[] free = seats == null ? new int[0] : seats.free();
+		if (free.length == 0) {
+			this._bookings.add(booking);
+			return false;
+		}
+		int sno = free[ThreadLocalRandom.current().nextInt(free.length)];
+		try {
+			this._esql.exchanges().exchange(booking[0], new int[] { (int) booking[2] }, new int[] { sno });
+			booking[2] = sno;
+			this._bookings.add(booking);
+			return true;
+		} catch (SQLException e) {
+			this._bookings.add(booking);
+			throw conflictOr(e);
+		} catch (IllegalArgumentException e) {
+			// a different seat type; the booking stays usable
+			this._bookings.add(booking);
+			return false;
+		}
+	}
+
+	private boolean refund() throws SQLException, Conflict {
+		long[] booking = this._bookings.poll();
+		if (booking == null)
+			return false;
+		try {
+			// concurrent refunds from all clients share the pipeline's batches
+			this._esql.payments().cancelAndWait(booking[0], null);
+		} catch (SQLException e) {
+			this._bookings.add(booking);
+			throw conflictOr(e);
+		}
+		return true;
+	}
+
+	private static SQLException conflictOr(SQLException e) throws Conflict {
+		if (e instanceof ReservationEngine.SeatUnavailableException || DEADLOCK.equals(e.getSQLState()))
+			throw new Conflict();
+		return e;
+	}
+
+	private static int[] sample(int[] from, int count) {
+		int[] copy = from.clone();
+		count = Math.min(count, copy.length);
+		for (int i = 0; i < count; i++) {
+			int j = i + ThreadLocalRandom.current().nextInt(copy.length - i);
+			int t = copy[i];
+			copy[i] = copy[j];
+			copy[j] = t;
+		}
+		int[] out = new int[count];
+		System.arraycopy(copy, 0, out, 0, count);
+		return out;
+	}
+
+	private static <T> T pick(List<T> list) {
+		return list.get(ThreadLocalRandom.current().nextInt(list.size()));
+	}
+
+	/**
+	 * Method to print a table of the results.
+	 */
+	void report(PrintWriter out, long elapsedNanos) {
+		double seconds = elapsedNanos / 1e9;
+		long total = 0;
+		out.println(String.format(Locale.ROOT, "%-10s %8s %9s %9s %9s %9s %9s %8s %8s %8s", "operation", "count",
+				"ops/sec", "p50 ms", "p95 ms", "p99 ms", "max ms", "conflict", "retry", "gave up"));
+		for (Stats s : this._stats) {
+			LatencyHistogram h = s.latency;
+			total += h.count();
+			out.println(String.format(Locale.ROOT, "%-10s %8d %9.1f %9.2f %9.2f %9.2f %9.2f %8d %8d %8d", s.name,
+					h.count(), h.count() / seconds, h.percentile(50) / 1e6, h.percentile(95) / 1e6,
+					h.percentile(99) / 1e6, h.max() / 1e6, s.conflicts.get(), s.retries.get(), s.gaveUp.get()));
+			if (s.errors.get() > 0 || s.skipped.get() > 0)
+				out.println(String.format(Locale.ROOT, "%-10s %d errors, %d had nothing to do", "", s.errors.get(),
+						s.skipped.get()));
+		}
+		out.println(String.format(Locale.ROOT, "%d operations in %.1fs, %.1f/sec", total, seconds, total / seconds));
+		out.flush();
+	}
+
+	/**
+	 * Method to write the results as JSON. Latencies are in microseconds.
+	 */
+	void writeJson(PrintWriter out, int clients, double skew, long elapsedNanos) {
+		double seconds = elapsedNanos / 1e9;
+		out.println("{");
+		out.printf(Locale.ROOT, "  \"timestamp\": %d,%n", System.currentTimeMillis());
+		out.printf(Locale.ROOT, "  \"clients\": %d,%n", clients);
+		out.printf(Locale.ROOT, "  \"skew\": %.2f,%n", skew);
+		out.printf(Locale.ROOT, "  \"seconds\": %.1f,%n", seconds);
+		out.println("  \"operations\": [");
+		for (int i = 0; i < this._stats.length; i++) {
+			Stats s = this._stats[i];
+			LatencyHistogram h = s.latency;
+			out.printf(Locale.ROOT,
+					"    {\"name\": \"%s\", \"ops\": %d, \"opsPerSec\": %.1f, \"conflicts\": %d, \"retries\": %d, "
+							+ "\"gaveUp\": %d, \"errors\": %d, \"skipped\": %d, "
+							+ "\"latencyMicros\": {\"mean\": %.1f, \"p50\": %d, \"p95\": %d, \"p99\": %d, \"max\": %d}}%s%n",
+					s.name, h.count(), h.count() / seconds, s.conflicts.get(), s.retries.get(), s.gaveUp.get(),
+					s.errors.get(), s.skipped.get(), h.mean() / 1000, h.percentile(50) / 1000,
+					h.percentile(95) / 1000, h.percentile(99) / 1000, h.max() / 1000,
+					i + 1 < this._stats.length ? "," : "");
+		}
+		out.println("  ]");
+		out.println("}");
+		out.flush();
+	}
+
+	static int[] parseMix(String mix) {
+		int[] weights = new int[OPERATIONS.length];
+		for (String item : mix.split(",")) {
+			String[] kv = item.split("=");
+			int op = -1;
+			for (int i = 0; i < OPERATIONS.length; i++)
+				if (OPERATIONS[i].equals(kv[0].trim()))
+					op = i;
+			if (op < 0 || kv.length != 2)
+				throw new IllegalArgumentException("expected <operation>=<weight> with an operation of "
+						+ String.join("|", OPERATIONS) + ", got " + item);
+			weights[op] = Integer.parseInt(kv[1].trim());
+		}
+		int total = 0;
+		for (int w : weights)
+			total += w;
+		if (total <= 0)
+			throw new IllegalArgumentException("the mix needs a positive weight");
+		return weights;
+	}
+
+	/**
+	 * The load generator entry point.
+	 *
+	 * @param args &lt;dbname&gt; &lt;port&gt; &lt;user&gt; [--clients n] [--seconds
+	 *             seconds] [--mix book=50,change=10,...] [--skew s] [--users n]
+	 *             [--shows n] [--retries n] [--seats n] [--out &lt;json
+	 *             file&gt;]
+	 */
+	public static void main(String[] args) throws IOException, SQLException {
+		if (args.length < 3) {
+			System.err.println("Usage: java [-classpath <classpath>] " + LoadGenerator.class.getName()
+					+ " <dbname> <port> <user> [--clients n] [--seconds seconds]"
+					+ " [--mix book=50,change=10,refund=5,itinerary=25,search=10] [--skew s] [--users n]"
+					+ " [--shows n] [--retries n] [--seats n] [--out <json file>]");
+			return;
+		}
+		int clients = 64, users = 10000, shows = 10000, retries = 3, seats = 4;
+		long seconds = 60;
+		double skew = 1.0;
+		String mix = "book=50,change=10,refund=5,itinerary=25,search=10";
+		File out = null;
+		for (int i = 3; i + 1 < args.length; i += 2) {
+			String opt = args[i], value = args[i + 1];
+			if (opt.equals("--clients"))
+				clients = Integer.parseInt(value);
+			else if (opt.equals("--seconds"))
+				seconds = Long.parseLong(value);
+			else if (opt.equals("--mix"))
+				mix = value;
+			else if (opt.equals("--skew"))
+				skew = Double.parseDouble(value);
+			else if (opt.equals("--users"))
+				users = Integer.parseInt(value);
+			else if (opt.equals("--shows"))
+				shows = Integer.parseInt(value);
+			else if (opt.equals("--retries"))
+				retries = Integer.parseInt(value);
+			else if (opt.equals("--seats"))
+				seats = Integer.parseInt(value);
+			else if (opt.equals("--out"))
+				out = new File(value);
+			else
+				throw new IllegalArgumentException("unknown option " + opt);
+		}
+
+		Ticketmaster esql = new Ticketmaster(args[0], args[1], args[2], "");
+		try {
+			new SchemaMigrator(esql).migrate();
+			LoadGenerator load = new LoadGenerator(esql, parseMix(mix), retries, seats);
+			load.prepare(users, shows, skew);
+			System.out.println("Load: " + clients + " clients for " + seconds + "s, mix " + mix + ", skew " + skew);
+			long elapsed = load.run(clients, seconds * 1000);
+			load.report(new PrintWriter(System.out), elapsed);
+
+			if (out != null) {
+				PrintWriter writer = new PrintWriter(new OutputStreamWriter(new FileOutputStream(out), "UTF-8"));
+				load.writeJson(writer, clients, skew, elapsed);
+				writer.close();
+				System.out.println("Wrote " + out);
+			}
+		} finally {
+			esql.cleanup();
+		}
+	}
+}
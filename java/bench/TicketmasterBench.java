@@ -0,0 +1,306 @@
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.PrintWriter;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * This class benchmarks the data path behind each menu operation against a
+ * running database: seat map lookup, booking insert, itinerary listing and
+ * date-range show search. Every benchmark warms up, then runs on a fixed
+ * number of threads for a fixed time, recording each call in a
+ * LatencyHistogram. The results are written as one JSON document so runs can
+ * be compared across releases.
+ *
+ * Run it through bench.sh, which can reload the database from a CSV directory
+ * first so each scale (1x, 10x, 100x) starts from the same data.
+ *
+ */
+
+public class TicketmasterBench {
+	private final Ticketmaster _esql;
+	private final int _threads;
+	private final long _warmupMillis;
+	private final long _measureMillis;
+
+	// benchmark inputs, sampled from the loaded data
+	private final List<String> _emails = new ArrayList<String>();
+	private final List<Long> _sids = new ArrayList<Long>();
+	private final List<String[]> _titleAndCinema = new ArrayList<String[]>();
+	private String _firstDate;
+	private String _lastDate;
+
+	public TicketmasterBench(Ticketmaster esql, int threads, long warmupMillis, long measureMillis) {
+		this._esql = esql;
+		this._threads = threads;
+		this._warmupMillis = warmupMillis;
+		this._measureMillis = measureMillis;
+	}
+
+	/**
+	 * One call of the operation under test. Returns false when the call did not
+	 * do the intended work, such as a booking that lost a seat race.
+	 */
+	interface Operation {
+		boolean run() throws SQLException;
+	}
+
+	/**
+	 * Measurements of one benchmark.
+	 */
+	static class Result {
+		final String name;
+		final LatencyHistogram latency = new LatencyHistogram();
+		final AtomicLong failures = new AtomicLong();
+		long elapsedNanos;
+
+		Result(String name) {
+			this.name = name;
+		}
+
+		double opsPerSec() {
+			return elapsedNanos == 0 ? 0 : latency.count() / (elapsedNanos / 1e9);
+		}
+	}
+
+	/**
+	 * Method to sample benchmark inputs from the database.
+	 *
+	 * @throws java.sql.SQLException when the sampling queries failed
+	 */
+	public void prepare() throws SQLException {
+		for (List<String> row : this._esql.executeQueryAndReturnResult("select email from users limit 1000;"))
+			this._emails.add(row.get(0));
+		for (List<String> row : this._esql.executeQueryAndReturnResult("select distinct sid from plays limit 1000;"))
+			this._sids.add(Long.parseLong(row.get(0)));
+		ShowQuery pairs = new ShowQuery().select("m.title", "c.cname", "m.mvid").distinct();
+		for (List<String> row : this._esql.executeQueryAndReturnResult(pairs.sql(), pairs.params()))
+			if (this._titleAndCinema.size() < 1000)
+				this._titleAndCinema.add(new String[] { row.get(0), row.get(1), row.get(2) });
+		List<List<String>> range = this._esql.executeQueryAndReturnResult("select min(sdate), max(sdate) from shows;");
+		this._firstDate = range.get(0).get(0);
+		this._lastDate = range.get(0).get(1);
+		if (this._emails.isEmpty() || this._sids.isEmpty() || this._titleAndCinema.isEmpty())
+			throw new IllegalStateException("the database holds no users or playing shows to benchmark against");
+	}
+
+	/**
+	 * Method to run every benchmark in turn.
+	 *
+	 * @return the results in the order they ran
+	 */
+	public List<Result> runAll() throws SQLException {
+		List<Result> results = new ArrayList<Result>();
+
+		// AddBooking: the seat map behind the free-seat listing, loaded from the database
+		results.add(run("seatLookup", new Operation() {
+			public boolean run() throws SQLException {
+				long sid = pick(_sids);
+				_esql.seats().invalidate(sid);
+				return _esql.seats().show(sid) != null;
+			}
+		}));
+
+		// AddBooking: one single-seat reservation on a random free seat
+		results.add(run("bookingInsert", new Operation() {
+			public boolean run() throws SQLException {
+				long sid = pick(_sids);
+				SeatAvailability.ShowSeats seats = _esql.seats().show(sid);
+				if (seats == null)
+					return false;
+				int[] free = seats.free();
+				if (free.length == 0)
+					return false;
+				int sno = free[ThreadLocalRandom.current().nextInt(free.length)];
+				try {
+					_esql.reservations().reserve(pick(_emails), sid, new int[] { sno });
+					return true;
+				} catch (ReservationEngine.SeatUnavailableException e) {
+					return false;
+				}
+			}
+		}));
+
+		// ListBookingInfoForUser: first page of a user's bookings, bypassing the cache
+		results.add(run("itineraryListing", new Operation() {
+			public boolean run() throws SQLException {
+				String email = pick(_emails);
+				_esql.itinerary().invalidate(email);
+				_esql.itinerary().page(email, 0, 50);
+				return true;
+			}
+		}));
+
+		// ListMovieAndShowInfoAtCinemaInDateRange: the show_schedule range scan menu 13 runs, with the
+		// title already resolved to its mvid as the reference data cache does in memory
+		results.add(run("dateRangeShowSearch", new Operation() {
+			public boolean run() throws SQLException {
+				String[] pair = pick(_titleAndCinema);
+				_esql.executeQueryAndReturnResult(ShowSchedule.AT_CINEMA_BETWEEN, pair[1], _firstDate, _lastDate,
+						Long.parseLong(pair[2]));
+				return true;
+			}
+		}));
+
+		// the same listing as a join over the base tables, as a baseline for the schedule table
+		results.add(run("dateRangeShowSearchJoin", new Operation() {
+			public boolean run() throws SQLException {
+				String[] pair = pick(_titleAndCinema);
+				ShowQuery q = new ShowQuery().select("m.title", "m.duration", "s.sdate", "s.sttime").distinct()
+						.movieTitle(pair[0]).cinemaName(pair[1]).dateBetween(_firstDate, _lastDate)
+						.orderBy("s.sdate, s.sttime");
+				_esql.executeQueryAndReturnResult(q.sql(), q.params());
+				return true;
+			}
+		}));
+		return results;
+	}
+
+	/**
+	 * Method to warm up and then measure one operation on all threads.
+	 */
+	Result run(String name, final Operation op) throws SQLException {
+		System.out.println("Benchmark " + name + ": warmup " + this._warmupMillis + "ms, measure "
+				+ this._measureMillis + "ms on " + this._threads + " threads");
+		drive(op, this._warmupMillis, new Result(name));
+		Result result = new Result(name);
+		long start = System.nanoTime();
+		drive(op, this._measureMillis, result);
+		result.elapsedNanos = System.nanoTime() - start;
+		System.out.printf("  %.0f ops/sec, p50 %dus, p99 %dus, %d failed%n", result.opsPerSec(),
+				result.latency.percentile(50) / 1000, result.latency.percentile(99) / 1000, result.failures.get());
+		return result;
+	}
+
+	private void drive(final Operation op, long millis, final Result result) throws SQLException {
+		final long deadline = System.nanoTime() + millis * 1000000L;
+		final SQLException[] error = new SQLException[1];
+		Thread[] workers = new Thread[this._threads];
+		for (int i = 0; i < workers.length; i++) {
+			workers[i] = new Thread(new Runnable() {
+				public void run() {
+					try {
+						while (System.nanoTime() < deadline) {
+							long start = System.nanoTime();
+							boolean ok = op.run();
+							result.latency.record(System.nanoTime() - start);
+							if (!ok)
+								result.failures.incrementAndGet();
+						}
+					} catch (SQLException e) {
+						synchronized (error) {
+							error[0] = e;
+						}
+					}
+				}
+			}, "bench-" + result.name + "-" + i);
+			workers[i].start();
+		}
+		for (Thread worker : workers) {
+			try {
+				worker.join();
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				throw new SQLException("Interrupted while benchmarking");
+			}
+		}
+		synchronized (error) {
+			if (error[0] != null)
+				throw error[0];
+		}
+	}
+
+	private static <T> T pick(List<T> list) {
+		return list.get(ThreadLocalRandom.current().nextInt(list.size()));
+	}
+
+	/**
+	 * Method to write the results as JSON. Latencies are in microseconds.
+	 */
+	void writeJson(PrintWriter out, String scale, List<Result> results) {
+		out.println("{");
+		out.printf(Locale.ROOT, "  \"scale\": \"%s\",%n", scale);
+		out.printf(Locale.ROOT, "  \"timestamp\": %d,%n", System.currentTimeMillis());
+		out.printf(Locale.ROOT, "  \"threads\": %d,%n", this._threads);
+		out.println("  \"benchmarks\": [");
+		for (int i = 0; i < results.size(); i++) {
+			Result r = results.get(i);
+			LatencyHistogram h = r.latency;
+			out.printf(Locale.ROOT,
+					"    {\"name\": \"%s\", \"ops\": %d, \"failures\": %d, \"opsPerSec\": %.1f, "
+							+ "\"latencyMicros\": {\"mean\": %.1f, \"p50\": %d, \"p90\": %d, \"p99\": %d, \"max\": %d}}%s%n",
+					r.name, h.count(), r.failures.get(), r.opsPerSec(), h.mean() / 1000, h.percentile(50) / 1000,
+					h.percentile(90) / 1000, h.percentile(99) / 1000, h.max() / 1000, i + 1 < results.size() ? "," : "");
+		}
+		out.println("  ]");
+		out.println("}");
+		out.flush();
+	}
+
+	/**
+	 * The benchmark entry point.
+	 *
+	 * @param args &lt;dbname&gt; &lt;port&gt; &lt;user&gt; [--scale &lt;label&gt;]
+	 *             [--data &lt;csv dir&gt;] [--threads n] [--warmup seconds]
+	 *             [--seconds seconds] [--out &lt;json file&gt;]
+	 */
+	public static void main(String[] args) throws IOException, SQLException {
+		if (args.length < 3) {
+			System.err.println("Usage: java [-classpath <classpath>] " + TicketmasterBench.class.getName()
+					+ " <dbname> <port> <user> [--scale <label>] [--data <csv dir>] [--threads n]"
+					+ " [--warmup seconds] [--seconds seconds] [--out <json file>]");
+			return;
+		}
+		String scale = "1x";
+		File data = null;
+		File out = null;
+		int threads = 4;
+		long warmup = 5, seconds = 20;
+		for (int i = 3; i + 1 < args.length; i += 2) {
+			String opt = args[i], value = args[i + 1];
+			if (opt.equals("--scale"))
+				scale = value;
+			else if (opt.equals("--data"))
+				data = new File(value);
+			else if (opt.equals("--threads"))
+				threads = Integer.parseInt(value);
+			else if (opt.equals("--warmup"))
+				warmup = Long.parseLong(value);
+			else if (opt.equals("--seconds"))
+				seconds = Long.parseLong(value);
+			else if (opt.equals("--out"))
+				out = new File(value);
+			else
+				throw new IllegalArgumentException("unknown option " + opt);
+		}
+
+		Ticketmaster esql = new Ticketmaster(args[0], args[1], args[2], "");
+		try {
+			new SchemaMigrator(esql).migrate();
+			if (data != null)
+				new BulkLoader(esql).load(data);
+			else
+				esql.schedule().ensureBuilt();
+
+			TicketmasterBench bench = new TicketmasterBench(esql, threads, warmup * 1000, seconds * 1000);
+			bench.prepare();
+			List<Result> results = bench.runAll();
+
+			PrintWriter writer = out == null ? new PrintWriter(System.out)
+					: new PrintWriter(new OutputStreamWriter(new FileOutputStream(out), "UTF-8"));
+			bench.writeJson(writer, scale, results);
+			if (out != null) {
+				writer.close();
+				System.out.println("Wrote " + out);
+			}
+		} finally {
+			esql.cleanup();
+		}
+	}
+}
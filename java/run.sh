@@ -5,5 +5,10 @@ dbname=$(logname)_db
 
 cd $root/java
 
-# Example: ./run.sh
-java -cp lib/*:bin/ Ticketmaster $dbname $PGPORT $(logname)
+# Example: ./run.sh            (interactive menu)
+#          ./run.sh serve 5166  (headless booking server)
+#          ./run.sh load ../data (reload all tables from the CSV files)
+#          ./run.sh simulate 5000 script.txt 10 (5000 concurrent scripted users, 10 runs each)
+# Settings go in JAVA_OPTS, e.g. JAVA_OPTS="-Dmetrics.port=9166 -Dmetrics.slowMillis=50" ./run.sh serve
+# Listings: -Doutput.format=tsv|table|jsonl, -Doutput.pageSize=50, -Doutput.file=out.jsonl
+java $JAVA_OPTS -cp lib/*:bin/ Ticketmaster $dbname $PGPORT $(logname) "$@"
@@ -0,0 +1,113 @@
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * This class lists a user's bookings with the movie, show time, theater and
+ * seats of each one from a single joined query, a page at a time in bid order.
+ * Pages are cached per user for -Ditinerary.ttlMillis so repeated "my
+ * bookings" screens do not go back to the database; the booking paths
+ * invalidate a user's pages when they change them. At most
+ * -Ditinerary.cacheSize users are cached, least recently used evicted first.
+ *
+ */
+
+public class BookingItinerary {
+	private static final String PAGE = "select b.bid, m.title, s.sdate, s.sttime, t.tname, "
+			+ "string_agg(cs.sno::text, ',' order by cs.sno) "
+			+ "from bookings b join shows s on s.sid = b.sid join movies m on m.mvid = s.mvid "
+			+ "left join theaters t on t.tid = (select min(p.tid) from plays p where p.sid = s.sid) "
+			+ "left join showseats ss on ss.bid = b.bid left join cinemaseats cs on cs.csid = ss.csid "
+			+ "where b.email = ? and b.bid > ? "
+			+ "group by b.bid, m.title, s.sdate, s.sttime, t.tname order by b.bid limit ?;";
+
+	private final Ticketmaster _esql;
+	private final long _ttlMillis;
+	// access-ordered, guarded by its own lock
+	private final LinkedHashMap<String, UserPages> _cache;
+
+	public BookingItinerary(Ticketmaster esql) {
+		this._esql = esql;
+		this._ttlMillis = Long.getLong("itinerary.ttlMillis", 5000L);
+		final int maxUsers = Math.max(1, Integer.getInteger("itinerary.cacheSize", 10000));
+		this._cache = new LinkedHashMap<String, UserPages>(16, 0.75f, true) {
+			private static final long serialVersionUID = 1L;
+
+			protected boolean removeEldestEntry(Map.Entry<String, UserPages> eldest) {
+				return size() > maxUsers;
+			}
+		};
+	}
+
+	// cached pages of one user, keyed by "<after bid>:<limit>"
+	private static class UserPages {
+		final long loadedAt = System.currentTimeMillis();
+		final ConcurrentHashMap<String, List<BookingView>> pages = new ConcurrentHashMap<String, List<BookingView>>();
+	}
+
+	/**
+	 * Method to fetch one page of a user's bookings.
+	 *
+	 * @param email    the user's account
+	 * @param afterBid only bookings with a larger bid are returned; 0 for the
+	 *                 first page
+	 * @param limit    page size
+	 * @return up to limit bookings in ascending bid order
+	 * @throws java.sql.SQLException when the query failed
+	 */
+	public List<BookingView> page(String email, long afterBid, int limit) throws SQLException {
+		UserPages user;
+		synchronized (this._cache) {
+			user = this._cache.get(email);
+			if (user == null || System.currentTimeMillis() - user.loadedAt > this._ttlMillis) {
+				user = new UserPages();
+				this._cache.put(email, user);
+			}
+		}
+		String key = afterBid + ":" + limit;
+		List<BookingView> page = user.pages.get(key);
+		if (page != null)
+			return page;
+
+		final List<BookingView> rows = new ArrayList<BookingView>(limit);
+		this._esql.streamQuery(PAGE, new Ticketmaster.RowHandler() {
+			public void row(Row row) throws SQLException {
+				String seats = row.getString(6);
+				rows.add(new BookingView(row.getLong(1), row.getString(2), row.getDate(3), row.getTime(4),
+						row.getString(5), parseSeats(seats)));
+			}
+		}, email, afterBid, limit);
+		page = Collections.unmodifiableList(rows);
+		user.pages.put(key, page);
+		return page;
+	}
+
+	/**
+	 * Method to drop the cached pages of a user after their bookings changed.
+	 */
+	public void invalidate(String email) {
+		synchronized (this._cache) {
+			this._cache.remove(email);
+		}
+	}
+
+	public void invalidateAll() {
+		synchronized (this._cache) {
+			this._cache.clear();
+		}
+	}
+
+	private static int[] parseSeats(String list) {
+		if (list == null)
+			return new int[0];
+		String[] items = list.split(",");
+		int[] seats = new int[items.length];
+		for (int i = 0; i < items.length; i++)
+			seats[i] = Integer.parseInt(items[i]);
+		return seats;
+	}
+}
@@ -0,0 +1,179 @@
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.PrintWriter;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.sql.SQLException;
+import java.util.concurrent.Callable;
+
+/**
+ * This class runs the booking flows headless for many concurrent clients over
+ * a local socket. Each client is served by its own RequestExecutor task and
+ * every command runs as one transaction on a connection borrowed from the
+ * pool, so throughput is bounded by the pool size rather than by the number of
+ * terminals or threads.
+ *
+ * The protocol is line based; every command gets exactly one reply line:
+ *
+ * <pre>
+ * BOOK &lt;email&gt; &lt;sid&gt; &lt;sno&gt;[,&lt;sno&gt;...]       -&gt; OK &lt;bid&gt;
+ * CHANGE &lt;bid&gt; &lt;old sno&gt;:&lt;new sno&gt;[,...]   -&gt; OK &lt;seats changed&gt;
+ * SEATS &lt;sid&gt;                                -&gt; OK &lt;free sno&gt;[,...]
+ * ITINERARY &lt;email&gt;                          -&gt; OK &lt;bid&gt;[,...]
+ * QUIT                                       -&gt; BYE
+ * </pre>
+ *
+ * Failures reply with ERR followed by the reason and leave the database
+ * unchanged.
+ *
+ */
+
+public class BookingServer {
+	public static final int DEFAULT_PORT = 5166;
+
+	private final Ticketmaster _esql;
+	private final int _port;
+
+	public BookingServer(Ticketmaster esql, int port) {
+		this._esql = esql;
+		this._port = port;
+	}
+
+	/**
+	 * Method to accept clients on the loopback interface until the process is
+	 * stopped.
+	 *
+	 * @throws java.io.IOException when the listening socket fails
+	 */
+	public void serve() throws IOException {
+		ServerSocket listener = new ServerSocket(this._port, 128, InetAddress.getLoopbackAddress());
+		System.out.println("Booking server listening on " + listener.getLocalSocketAddress());
+		try {
+			while (true) {
+				final Socket client = listener.accept();
+				this._esql.requests().submit(null, new Callable<Void>() {
+					public Void call() {
+						session(client);
+						return null;
+					}
+				});
+			}
+		} finally {
+			listener.close();
+		}
+	}
+
+	private void session(Socket client) {
+		try {
+			BufferedReader reader = new BufferedReader(new InputStreamReader(client.getInputStream(), "UTF-8"));
+			PrintWriter writer = new PrintWriter(new OutputStreamWriter(client.getOutputStream(), "UTF-8"), true);
+			String line;
+			while ((line = reader.readLine()) != null) {
+				line = line.trim();
+				if (line.isEmpty())
+					continue;
+				if (line.equalsIgnoreCase("QUIT")) {
+					writer.println("BYE");
+					break;
+				}
+				writer.println(handle(line));
+			}
+		} catch (IOException e) {
+			// client went away
+		} finally {
+			try {
+				client.close();
+			} catch (IOException e) {
+				// ignored.
+			}
+		}
+	}
+
+	/**
+	 * Method to execute one protocol command.
+	 *
+	 * @param line the command line without its terminator
+	 * @return the reply line
+	 */
+	public String handle(String line) {
+		String[] parts = line.split("\\s+");
+		try {
+			String command = parts[0].toUpperCase();
+			if (command.equals("BOOK") && parts.length == 4) {
+				this._esql.setOperation("AddBooking");
+				return "OK " + book(parts[1], Long.parseLong(parts[2]), parseSeats(parts[3]));
+			}
+			if (command.equals("CHANGE") && parts.length == 3) {
+				this._esql.setOperation("ChangeSeatsForBooking");
+				return "OK " + change(Long.parseLong(parts[1]), parts[2].split(","));
+			}
+			if (command.equals("SEATS") && parts.length == 2) {
+				this._esql.setOperation("AddBooking");
+				return "OK " + freeSeats(Long.parseLong(parts[1]));
+			}
+			if (command.equals("ITINERARY") && parts.length == 2) {
+				this._esql.setOperation("ListBookingInfoForUser");
+				return "OK " + itinerary(parts[1]);
+			}
+			return "ERR unknown command: " + line;
+		} catch (NumberFormatException e) {
+			return "ERR malformed number: " + e.getMessage();
+		} catch (IllegalArgumentException e) {
+			return "ERR " + e.getMessage();
+		} catch (SQLException e) {
+			return "ERR " + e.getMessage().replace('\n', ' ');
+		}
+	}
+
+	private static int[] parseSeats(String list) {
+		String[] items = list.split(",");
+		int[] seats = new int[items.length];
+		for (int i = 0; i < items.length; i++)
+			seats[i] = Integer.parseInt(items[i]);
+		return seats;
+	}
+
+	private long book(String email, long sid, int[] seats) throws SQLException {
+		return this._esql.reservations().reserve(email, sid, seats);
+	}
+
+	private int change(long bid, String[] pairs) throws SQLException {
+		int[] oldSnos = new int[pairs.length];
+		int[] newSnos = new int[pairs.length];
+		for (int i = 0; i < pairs.length; i++) {
+			String[] seat = pairs[i].split(":");
+			if (seat.length != 2)
+				throw new IllegalArgumentException("expected <old sno>:<new sno>, got " + pairs[i]);
+			oldSnos[i] = Integer.parseInt(seat[0]);
+			newSnos[i] = Integer.parseInt(seat[1]);
+		}
+
+		return this._esql.exchanges().exchange(bid, oldSnos, newSnos);
+	}
+
+	private String freeSeats(long sid) throws SQLException {
+		SeatAvailability.ShowSeats seats = this._esql.seats().show(sid);
+		if (seats == null)
+			throw new IllegalArgumentException("show " + sid + " is not playing anywhere");
+		StringBuilder reply = new StringBuilder();
+		for (int sno : seats.free()) {
+			if (reply.length() > 0)
+				reply.append(',');
+			reply.append(sno);
+		}
+		return reply.toString();
+	}
+
+	private String itinerary(String email) throws SQLException {
+		StringBuilder reply = new StringBuilder();
+		for (BookingView booking : this._esql.itinerary().page(email, 0, 50)) {
+			if (reply.length() > 0)
+				reply.append(',');
+			reply.append(booking.bid());
+		}
+		return reply.toString();
+	}
+}
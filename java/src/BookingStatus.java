@@ -0,0 +1,55 @@
+/**
+ * This enum lists the states of a booking. The label is what Bookings.status
+ * holds and the code is the value of the Bookings.status_code column, kept in
+ * step with status by a trigger, which the partial indexes on pending and
+ * cancelled bookings are defined over (see SchemaMigrator).
+ *
+ */
+
+public enum BookingStatus {
+	PENDING(0, "Pending"), PAID(1, "Paid"), CANCELLED(2, "Cancelled");
+
+	private final int _code;
+	private final String _label;
+
+	BookingStatus(int code, String label) {
+		this._code = code;
+		this._label = label;
+	}
+
+	public int code() {
+		return this._code;
+	}
+
+	public String label() {
+		return this._label;
+	}
+
+	/**
+	 * Method to parse a status label in any case.
+	 *
+	 * @param label the label, such as "Paid"
+	 * @return the status
+	 * @throws IllegalArgumentException when the label is not a known status
+	 */
+	public static BookingStatus of(String label) {
+		for (BookingStatus status : values())
+			if (status._label.equalsIgnoreCase(label))
+				return status;
+		throw new IllegalArgumentException("unknown booking status " + label);
+	}
+
+	/**
+	 * Method to build the SQL expression mapping a status label to its code;
+	 * unknown labels map to NULL.
+	 *
+	 * @param column the label column, such as NEW.status
+	 * @return a CASE expression
+	 */
+	static String codeSql(String column) {
+		StringBuilder sql = new StringBuilder("CASE ").append(column);
+		for (BookingStatus status : values())
+			sql.append(" WHEN '").append(status._label).append("' THEN ").append(status._code);
+		return sql.append(" END").toString();
+	}
+}
@@ -0,0 +1,63 @@
+import java.sql.Date;
+import java.sql.Time;
+
+/**
+ * This class is one line of a user's booking itinerary: the booking, the show
+ * it is for and every seat it holds.
+ *
+ */
+
+public class BookingView {
+	private final long _bid;
+	private final String _title;
+	private final Date _showDate;
+	private final Time _startTime;
+	private final String _theater;
+	private final int[] _seats;
+
+	public BookingView(long bid, String title, Date showDate, Time startTime, String theater, int[] seats) {
+		this._bid = bid;
+		this._title = title;
+		this._showDate = showDate;
+		this._startTime = startTime;
+		this._theater = theater;
+		this._seats = seats;
+	}
+
+	public long bid() {
+		return this._bid;
+	}
+
+	public String title() {
+		return this._title;
+	}
+
+	public Date showDate() {
+		return this._showDate;
+	}
+
+	public Time startTime() {
+		return this._startTime;
+	}
+
+	public String theater() {
+		return this._theater;
+	}
+
+	/**
+	 * @return the seat numbers in ascending order, empty when none are assigned
+	 */
+	public int[] seats() {
+		return this._seats.clone();
+	}
+
+	public String seatList() {
+		StringBuilder list = new StringBuilder();
+		for (int i = 0; i < this._seats.length; i++) {
+			if (i > 0)
+				list.append(", ");
+			list.append(this._seats[i]);
+		}
+		return list.toString();
+	}
+}
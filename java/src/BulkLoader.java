@@ -0,0 +1,149 @@
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import org.postgresql.PGConnection;
+
+/**
+ * This class (re)loads the data/*.csv files from the client side with the
+ * COPY protocol, so the files do not have to be copied into the server's data
+ * directory first. Tables are loaded in foreign key order; tables at the same
+ * depth load in parallel, each on its own pooled connection.
+ *
+ */
+
+public class BulkLoader {
+	// tables grouped by foreign key depth; each group only references earlier ones
+	private static final String[][] LEVELS = {
+			{ "Cities", "Movies", "Users" },
+			{ "Cinemas", "Shows" },
+			{ "Theaters", "Bookings" },
+			{ "CinemaSeats", "Payments", "Plays" },
+			{ "ShowSeats" } };
+
+	private final Ticketmaster _esql;
+
+	public BulkLoader(Ticketmaster esql) {
+		this._esql = esql;
+	}
+
+	/**
+	 * Method to build the COPY statement for a table, matching sql/create.sql.
+	 */
+	static String copySql(String table) {
+		String columns;
+		String options = "WITH DELIMITER ','";
+		if (table.equals("Cities"))
+			columns = "city_id, city_name, city_state, zip_code";
+		else if (table.equals("Cinemas"))
+			columns = "cid, city_id, cname, tnum";
+		else if (table.equals("Theaters"))
+			columns = "tid, cid, tname, tseats";
+		else if (table.equals("CinemaSeats"))
+			columns = "csid, tid, sno, stype";
+		else if (table.equals("Movies"))
+			columns = "mvid, title, rdate, country, description, duration, lang, genre";
+		else if (table.equals("Users"))
+			columns = "email, lname, fname, phone, pwd";
+		else if (table.equals("Shows"))
+			columns = "sid, mvid, sdate, sttime, edtime";
+		else if (table.equals("Bookings"))
+			columns = "bid, status, bdatetime, seats, sid, email";
+		else if (table.equals("Payments"))
+			columns = "pid, bid, pmethod, pdatetime, amount, trid";
+		else if (table.equals("ShowSeats")) {
+			columns = "ssid, sid, csid, bid, price";
+			options += " NULL AS ''";
+		} else if (table.equals("Plays"))
+			columns = "sid, tid";
+		else
+			throw new IllegalArgumentException("unknown table " + table);
+		return "COPY " + table + " (" + columns + ") FROM STDIN " + options;
+	}
+
+	/**
+	 * Method to replace the contents of every table with the CSV files found in
+	 * the given directory, then reseed the key sequences.
+	 *
+	 * @param dataDir directory holding Cities.csv, Cinemas.csv, ...
+	 * @throws java.sql.SQLException when a table failed to load
+	 */
+	public void load(File dataDir) throws SQLException {
+		for (String[] level : LEVELS)
+			for (String table : level)
+				if (!new File(dataDir, table + ".csv").isFile())
+					throw new IllegalArgumentException("missing " + new File(dataDir, table + ".csv"));
+
+		long start = System.nanoTime();
+		// the idempotency keys and job checkpoints name bids that the load reuses
+		this._esql.executeUpdate(
+				"TRUNCATE Plays, ShowSeats, Payments, Bookings, Shows, Users, Movies, CinemaSeats, Theaters, Cinemas, Cities, "
+						+ "payment_cancellations, maintenance_jobs, seat_holds;");
+
+		ExecutorService workers = Executors.newFixedThreadPool(3);
+		long total = 0;
+		try {
+			for (String[] level : LEVELS) {
+				List<Future<Long>> loads = new ArrayList<Future<Long>>();
+				for (final String table : level) {
+					final File csv = new File(dataDir, table + ".csv");
+					loads.add(workers.submit(new Callable<Long>() {
+						public Long call() throws Exception {
+							return copy(table, csv);
+						}
+					}));
+				}
+				for (Future<Long> load : loads)
+					total += await(load);
+			}
+		} finally {
+			workers.shutdown();
+		}
+
+		this._esql.ids().reseed();
+		this._esql.seats().invalidateAll();
+		this._esql.holds().invalidateAll();
+		this._esql.refdata().reload();
+		this._esql.schedule().rebuild();
+		this._esql.pending().invalidate();
+		double seconds = (System.nanoTime() - start) / 1e9;
+		System.out.printf("Loaded %d rows in %.2fs (%.0f rows/sec)%n", total, seconds, total / seconds);
+	}
+
+	private long copy(String table, File csv) throws SQLException, IOException {
+		long start = System.nanoTime();
+		long rows;
+		try (ConnectionPool.PooledConnection pc = this._esql.pool().borrow();
+				BufferedReader reader = new BufferedReader(
+						new InputStreamReader(new FileInputStream(csv), "UTF-8"), 1 << 16)) {
+			rows = ((PGConnection) pc.connection()).getCopyAPI().copyIn(copySql(table), reader);
+		}
+		double seconds = (System.nanoTime() - start) / 1e9;
+		System.out.printf("  %-12s %10d rows %8.2fs %12.0f rows/sec%n", table, rows, seconds, rows / seconds);
+		return rows;
+	}
+
+	private static long await(Future<Long> load) throws SQLException {
+		try {
+			return load.get();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new SQLException("Interrupted while loading");
+		} catch (ExecutionException e) {
+			Throwable cause = e.getCause();
+			if (cause instanceof SQLException)
+				throw (SQLException) cause;
+			throw new SQLException("Load failed: " + cause.getMessage(), cause);
+		}
+	}
+}
@@ -0,0 +1,264 @@
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Properties;
+import java.util.concurrent.LinkedBlockingDeque;
+import java.util.concurrent.Semaphore;
+
+/**
+ * This class defines a bounded pool of physical PostgreSQL connections.
+ * Connections that sat idle for longer than the validation threshold are
+ * validated when borrowed; recently used ones are handed out as they are, since
+ * validation costs a round trip and release() already discards connections that
+ * failed. Idle connections are closed by a background evictor once they have
+ * been idle for longer than the configured timeout, never going below the
+ * minimum size.
+ *
+ */
+
+public class ConnectionPool {
+	// seconds the driver may spend on a validation round trip
+	private static final int VALIDATION_TIMEOUT = 2;
+
+	private final String _url;
+	private final Properties _props;
+	private final int _minSize;
+	private final int _maxSize;
+	private final long _idleMillis;
+	private final long _validateMillis;
+
+	// most recently released connection first, so hot connections stay hot
+	private final LinkedBlockingDeque<PooledConnection> _idle = new LinkedBlockingDeque<PooledConnection>();
+	// one permit per connection that may still be handed out
+	private final Semaphore _permits;
+	private final List<PooledConnection> _all = new ArrayList<PooledConnection>();
+	private final Thread _evictor;
+	private volatile boolean _closed = false;
+
+	public ConnectionPool(String url, Properties props, int minSize, int maxSize, long idleMillis,
+			long validateMillis) throws SQLException {
+		if (minSize < 0 || maxSize < 1 || minSize > maxSize)
+			throw new IllegalArgumentException("invalid pool size: min " + minSize + ", max " + maxSize);
+		this._url = url;
+		this._props = props;
+		this._minSize = minSize;
+		this._maxSize = maxSize;
+		this._idleMillis = idleMillis;
+		this._validateMillis = validateMillis;
+		this._permits = new Semaphore(maxSize, true);
+
+		for (int i = 0; i < minSize; i++)
+			this._idle.addLast(open());
+
+		this._evictor = new Thread(new Runnable() {
+			public void run() {
+				evictLoop();
+			}
+		}, "pool-evictor");
+		this._evictor.setDaemon(true);
+		this._evictor.start();
+	}
+
+	/**
+	 * Method to borrow a connection, waiting as long as needed for one to be
+	 * released when the pool is at its maximum size.
+	 *
+	 * @return a connection that was used or validated recently; close it to hand
+	 *         it back
+	 * @throws java.sql.SQLException when no valid connection could be opened
+	 */
+	public PooledConnection borrow() throws SQLException {
+		try {
+			this._permits.acquire();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new SQLException("Interrupted while waiting for a connection");
+		}
+		try {
+			PooledConnection pc;
+			while ((pc = this._idle.pollFirst()) != null) {
+				if (System.currentTimeMillis() - pc.lastUsed() <= this._validateMillis
+						|| pc.connection().isValid(VALIDATION_TIMEOUT))
+					return pc;
+				discard(pc);
+			}
+			return open();
+		} catch (SQLException e) {
+			this._permits.release();
+			throw e;
+		} catch (RuntimeException e) {
+			this._permits.release();
+			throw e;
+		}
+	}
+
+	/**
+	 * Method to return a borrowed connection. Connections left in a transaction
+	 * are rolled back; connections that fail to reset are discarded.
+	 *
+	 * @param pc the connection previously returned by borrow()
+	 */
+	void release(PooledConnection pc) {
+		try {
+			Connection c = pc.connection();
+			if (this._closed || c.isClosed()) {
+				discard(pc);
+			} else {
+				if (!c.getAutoCommit()) {
+					c.rollback();
+					c.setAutoCommit(true);
+				}
+				pc.touch();
+				this._idle.addFirst(pc);
+			}
+		} catch (SQLException e) {
+			discard(pc);
+		} finally {
+			this._permits.release();
+		}
+	}
+
+	/**
+	 * Method to open a connection with the pool's settings that the pool does
+	 * not manage, for sessions that must stay open such as a LISTEN.
+	 *
+	 * @return the new connection; the caller closes it
+	 * @throws java.sql.SQLException when the connection could not be opened
+	 */
+	public Connection connect() throws SQLException {
+		return DriverManager.getConnection(this._url, this._props);
+	}
+
+	private PooledConnection open() throws SQLException {
+		PooledConnection pc = new PooledConnection(this, DriverManager.getConnection(this._url, this._props));
+		synchronized (this._all) {
+			this._all.add(pc);
+		}
+		return pc;
+	}
+
+	private void discard(PooledConnection pc) {
+		synchronized (this._all) {
+			this._all.remove(pc);
+		}
+		pc.destroy();
+	}
+
+	private void evictLoop() {
+		long period = Math.max(1000L, this._idleMillis / 2);
+		while (!this._closed) {
+			try {
+				Thread.sleep(period);
+			} catch (InterruptedException e) {
+				return;
+			}
+			long cutoff = System.currentTimeMillis() - this._idleMillis;
+			// the oldest idle connections sit at the tail of the deque
+			Iterator<PooledConnection> it = this._idle.descendingIterator();
+			while (it.hasNext()) {
+				PooledConnection pc = it.next();
+				if (size() <= this._minSize)
+					break;
+				if (pc.lastUsed() < cutoff && this._idle.removeLastOccurrence(pc))
+					discard(pc);
+			}
+		}
+	}
+
+	public int size() {
+		synchronized (this._all) {
+			return this._all.size();
+		}
+	}
+
+	public int idle() {
+		return this._idle.size();
+	}
+
+	public int maxSize() {
+		return this._maxSize;
+	}
+
+	/**
+	 * Method to sum the prepared statement cache counters of every open
+	 * connection.
+	 *
+	 * @return a one line summary of cache hits and misses
+	 */
+	public String statementCacheStats() {
+		long hits = 0, misses = 0, cached = 0;
+		synchronized (this._all) {
+			for (PooledConnection pc : this._all) {
+				hits += pc.statements().hits();
+				misses += pc.statements().misses();
+				cached += pc.statements().size();
+			}
+		}
+		return "statement cache: " + hits + " hits, " + misses + " misses, " + cached + " cached over " + size()
+				+ " connections";
+	}
+
+	/**
+	 * Method to close every connection. Borrowed connections are closed when they
+	 * are released.
+	 */
+	public void close() {
+		this._closed = true;
+		this._evictor.interrupt();
+		PooledConnection pc;
+		while ((pc = this._idle.pollFirst()) != null)
+			discard(pc);
+	}
+
+	/**
+	 * A physical connection owned by the pool together with its prepared
+	 * statement cache.
+	 */
+	public static class PooledConnection implements AutoCloseable {
+		private final ConnectionPool _pool;
+		private final Connection _connection;
+		private final StatementCache _statements;
+		private volatile long _lastUsed = System.currentTimeMillis();
+
+		PooledConnection(ConnectionPool pool, Connection connection) {
+			this._pool = pool;
+			this._connection = connection;
+			this._statements = new StatementCache(connection, StatementCache.DEFAULT_CAPACITY);
+		}
+
+		public Connection connection() {
+			return this._connection;
+		}
+
+		public StatementCache statements() {
+			return this._statements;
+		}
+
+		long lastUsed() {
+			return this._lastUsed;
+		}
+
+		void touch() {
+			this._lastUsed = System.currentTimeMillis();
+		}
+
+		void destroy() {
+			this._statements.clear();
+			try {
+				this._connection.close();
+			} catch (SQLException e) {
+				// ignored.
+			}
+		}
+
+		/**
+		 * Method to hand the connection back to its pool.
+		 */
+		public void close() {
+			this._pool.release(this);
+		}
+	}
+}
@@ -0,0 +1,267 @@
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * This class writes a larger copy of the data/*.csv files that keeps every
+ * foreign key valid. The template rows are written once per replica; replica r
+ * adds r * (largest template id) to every id of a table and to every foreign
+ * key pointing at it, prefixes e-mail addresses with "r&lt;r&gt;." and marks
+ * movie titles with " (r)" so names stay unique. Replica 0 is the template
+ * itself.
+ *
+ * Files are streamed line by line, so memory use does not depend on the
+ * multiplier. Each table is split into replica ranges that are written in
+ * parallel to part files and then concatenated in order.
+ *
+ */
+
+public class DatasetScaler {
+	public static final String[] TABLES = { "Cities", "Cinemas", "Theaters", "CinemaSeats", "Movies", "Users", "Shows",
+			"Bookings", "Payments", "ShowSeats", "Plays" };
+
+	// rows written per part file before a table is split further
+	private static final long ROWS_PER_PART = 5000000L;
+
+	private final File _templateDir;
+	private final File _outDir;
+	private final int _multiplier;
+	private final int _threads;
+	// largest id of each table in the template, the per-replica id offset
+	private final Map<String, Long> _spans = new HashMap<String, Long>();
+
+	public DatasetScaler(File templateDir, File outDir, int multiplier, int threads) {
+		if (multiplier < 1)
+			throw new IllegalArgumentException("multiplier must be at least 1");
+		this._templateDir = templateDir;
+		this._outDir = outDir;
+		this._multiplier = multiplier;
+		this._threads = threads;
+	}
+
+	/**
+	 * Method to give the table whose id a column holds, for each column of a
+	 * table's CSV file.
+	 *
+	 * @return one entry per column; null for columns that are copied unchanged
+	 */
+	static String[] keyColumns(String table) {
+		if (table.equals("Cities"))
+			return new String[] { "Cities", null, null, null };
+		if (table.equals("Cinemas"))
+			return new String[] { "Cinemas", "Cities", null, null };
+		if (table.equals("Theaters"))
+			return new String[] { "Theaters", "Cinemas", null, null };
+		if (table.equals("CinemaSeats"))
+			return new String[] { "CinemaSeats", "Theaters", null, null };
+		if (table.equals("Movies"))
+			return new String[] { "Movies", null, null, null, null, null, null, null };
+		if (table.equals("Users"))
+			return new String[] { "Users", null, null, null, null };
+		if (table.equals("Shows"))
+			return new String[] { "Shows", "Movies", null, null, null };
+		if (table.equals("Bookings"))
+			return new String[] { "Bookings", null, null, null, "Shows", "Users" };
+		if (table.equals("Payments"))
+			return new String[] { "Payments", "Bookings", null, null, null, null };
+		if (table.equals("ShowSeats"))
+			return new String[] { "ShowSeats", "Shows", "CinemaSeats", "Bookings", null };
+		if (table.equals("Plays"))
+			return new String[] { "Shows", "Theaters" };
+		throw new IllegalArgumentException("unknown table " + table);
+	}
+
+	/**
+	 * Method to write every table at the configured multiplier.
+	 *
+	 * @throws java.io.IOException when a file could not be read or written
+	 */
+	public void generate() throws IOException {
+		if (!this._outDir.isDirectory() && !this._outDir.mkdirs())
+			throw new IOException("cannot create " + this._outDir);
+		long start = System.nanoTime();
+		for (String table : TABLES)
+			if (!table.equals("Users") && !table.equals("Plays"))
+				this._spans.put(table, maxId(table));
+
+		ExecutorService workers = Executors.newFixedThreadPool(this._threads);
+		long total = 0;
+		try {
+			List<TableJob> jobs = new ArrayList<TableJob>();
+			for (final String table : TABLES) {
+				int parts = (int) Math.min(this._multiplier,
+						Math.max(1, countRows(table) * this._multiplier / ROWS_PER_PART));
+				TableJob job = new TableJob(table);
+				for (int p = 0; p < parts; p++) {
+					final int from = (int) ((long) this._multiplier * p / parts);
+					final int to = (int) ((long) this._multiplier * (p + 1) / parts);
+					final File part = parts == 1 ? new File(this._outDir, table + ".csv")
+							: new File(this._outDir, table + ".csv.part" + p);
+					job.parts.add(part);
+					job.pieces.add(workers.submit(new Callable<Long>() {
+						public Long call() throws IOException {
+							return write(table, from, to, part);
+						}
+					}));
+				}
+				jobs.add(job);
+			}
+			for (TableJob job : jobs) {
+				long rows = 0;
+				for (Future<Long> piece : job.pieces)
+					rows += await(piece);
+				if (job.parts.size() > 1)
+					concatenate(job.parts, new File(this._outDir, job.table + ".csv"));
+				System.out.printf("  %-12s %12d rows%n", job.table, rows);
+				total += rows;
+			}
+		} finally {
+			workers.shutdown();
+		}
+		double seconds = (System.nanoTime() - start) / 1e9;
+		System.out.printf("Wrote %d rows at %dx to %s in %.2fs (%.0f rows/sec)%n", total, this._multiplier,
+				this._outDir, seconds, total / seconds);
+	}
+
+	// the part files of one table and the tasks writing them, in replica order
+	private static class TableJob {
+		final String table;
+		final List<File> parts = new ArrayList<File>();
+		final List<Future<Long>> pieces = new ArrayList<Future<Long>>();
+
+		TableJob(String table) {
+			this.table = table;
+		}
+	}
+
+	/**
+	 * Method to write replicas [from, to) of one table.
+	 *
+	 * @return the number of rows written
+	 */
+	long write(String table, int from, int to, File out) throws IOException {
+		String[] keys = keyColumns(table);
+		long[] offsets = new long[keys.length];
+		long rows = 0;
+		try (Writer writer = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(out), "UTF-8"), 1 << 16)) {
+			StringBuilder line = new StringBuilder(256);
+			for (int r = from; r < to; r++) {
+				for (int i = 0; i < keys.length; i++)
+					offsets[i] = keys[i] == null || keys[i].equals("Users") ? 0 : r * this._spans.get(keys[i]);
+				try (BufferedReader reader = open(table)) {
+					String template;
+					while ((template = reader.readLine()) != null) {
+						if (template.isEmpty())
+							continue;
+						String[] fields = template.split(",", -1);
+						line.setLength(0);
+						for (int i = 0; i < fields.length; i++) {
+							if (i > 0)
+								line.append(',');
+							String key = i < keys.length ? keys[i] : null;
+							if (key == null || fields[i].isEmpty() || r == 0)
+								line.append(fields[i]);
+							else if (key.equals("Users"))
+								line.append('r').append(r).append('.').append(fields[i]);
+							else
+								line.append(Long.parseLong(fields[i]) + offsets[i]);
+							if (r > 0 && table.equals("Movies") && i == 1)
+								line.append(" (").append(r).append(')');
+						}
+						writer.append(line).append('\n');
+						rows++;
+					}
+				}
+			}
+		}
+		return rows;
+	}
+
+	private long maxId(String table) throws IOException {
+		long max = 0;
+		try (BufferedReader reader = open(table)) {
+			String line;
+			while ((line = reader.readLine()) != null) {
+				int comma = line.indexOf(',');
+				if (comma > 0)
+					max = Math.max(max, Long.parseLong(line.substring(0, comma)));
+			}
+		}
+		return max;
+	}
+
+	private long countRows(String table) throws IOException {
+		long rows = 0;
+		try (BufferedReader reader = open(table)) {
+			String line;
+			while ((line = reader.readLine()) != null)
+				if (!line.isEmpty())
+					rows++;
+		}
+		return rows;
+	}
+
+	private BufferedReader open(String table) throws IOException {
+		File csv = new File(this._templateDir, table + ".csv");
+		return new BufferedReader(new InputStreamReader(new FileInputStream(csv), "UTF-8"), 1 << 16);
+	}
+
+	private static void concatenate(List<File> parts, File target) throws IOException {
+		try (FileChannel out = new FileOutputStream(target).getChannel()) {
+			for (File part : parts) {
+				try (FileChannel in = new FileInputStream(part).getChannel()) {
+					long position = 0, size = in.size();
+					while (position < size)
+						position += in.transferTo(position, size - position, out);
+				}
+				part.delete();
+			}
+		}
+	}
+
+	private static long await(Future<Long> table) throws IOException {
+		try {
+			return table.get();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new IOException("Interrupted while generating");
+		} catch (ExecutionException e) {
+			Throwable cause = e.getCause();
+			if (cause instanceof IOException)
+				throw (IOException) cause;
+			throw new IOException("Generation failed: " + cause.getMessage(), cause);
+		}
+	}
+
+	/**
+	 * The generator entry point; it does not need a database connection.
+	 *
+	 * @param args &lt;template dir&gt; &lt;output dir&gt; &lt;multiplier&gt;
+	 *             [threads]
+	 */
+	public static void main(String[] args) throws IOException {
+		if (args.length < 3) {
+			System.err.println("Usage: java [-classpath <classpath>] " + DatasetScaler.class.getName()
+					+ " <template dir> <output dir> <multiplier> [threads]");
+			return;
+		}
+		int threads = args.length > 3 ? Integer.parseInt(args[3]) : Runtime.getRuntime().availableProcessors();
+		new DatasetScaler(new File(args[0]), new File(args[1]), Integer.parseInt(args[2]), threads).generate();
+	}
+}
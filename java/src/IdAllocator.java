@@ -0,0 +1,126 @@
+import java.sql.SQLException;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * This class hands out primary keys from the Postgres sequences defined in
+ * sql/create.sql. Each sequence advances by BLOCK_SIZE, so one nextval() call
+ * reserves a whole block of ids (hi/lo style) that is then handed out from
+ * memory; most inserts need no round trip for key generation and concurrent
+ * sessions never see the same key. Ids lost to rollbacks or shutdown leave
+ * gaps, which is harmless.
+ *
+ */
+
+public class IdAllocator {
+	// must match INCREMENT BY of the sequences in sql/create.sql
+	public static final int BLOCK_SIZE = 50;
+
+	public static final String BOOKINGS = "bookings_bid_seq";
+	public static final String SHOWSEATS = "showseats_ssid_seq";
+	public static final String MOVIES = "movies_mvid_seq";
+	public static final String SHOWS = "shows_sid_seq";
+	public static final String PAYMENTS = "payments_pid_seq";
+
+	private final Ticketmaster _esql;
+	private final Map<String, Range> _ranges = new HashMap<String, Range>();
+
+	public IdAllocator(Ticketmaster esql) {
+		this._esql = esql;
+	}
+
+	/**
+	 * Method to allocate one id from a sequence.
+	 *
+	 * @param sequence name of the DB sequence
+	 * @return an unused id
+	 * @throws java.sql.SQLException when a new block could not be reserved
+	 */
+	public long next(String sequence) throws SQLException {
+		return next(sequence, 1)[0];
+	}
+
+	/**
+	 * Method to allocate several ids from a sequence at once, such as one per
+	 * seat of a booking.
+	 *
+	 * @param sequence name of the DB sequence
+	 * @param count    number of ids wanted
+	 * @return count unused ids in ascending order
+	 * @throws java.sql.SQLException when a new block could not be reserved
+	 */
+	public long[] next(String sequence, int count) throws SQLException {
+		Range range = range(sequence);
+		long[] ids = new long[count];
+		int filled = 0;
+		while (filled < count) {
+			synchronized (range) {
+				while (filled < count && range.next <= range.end)
+					ids[filled++] = range.next++;
+			}
+			if (filled == count)
+				break;
+
+			// reserve a fresh block without holding the lock during the round trip
+			long end = reserveBlock(sequence);
+			long next = end - BLOCK_SIZE + 1;
+			while (filled < count && next <= end)
+				ids[filled++] = next++;
+			synchronized (range) {
+				if (next <= end && range.next > range.end) {
+					range.next = next;
+					range.end = end;
+				}
+			}
+		}
+		return ids;
+	}
+
+	/**
+	 * Method to move every sequence past the largest id in its table, as the
+	 * end of sql/create.sql does, after rows were loaded with explicit ids.
+	 *
+	 * @throws java.sql.SQLException when a sequence could not be set
+	 */
+	public void reseed() throws SQLException {
+		this._esql.executeQuery("SELECT setval('bookings_bid_seq', (SELECT coalesce(max(bid), 0) FROM Bookings));");
+		this._esql.executeQuery("SELECT setval('showseats_ssid_seq', (SELECT coalesce(max(ssid), 0) FROM ShowSeats));");
+		this._esql.executeQuery("SELECT setval('movies_mvid_seq', (SELECT coalesce(max(mvid), 0) FROM Movies));");
+		this._esql.executeQuery("SELECT setval('shows_sid_seq', (SELECT coalesce(max(sid), 0) FROM Shows));");
+		this._esql.executeQuery("SELECT setval('payments_pid_seq', (SELECT coalesce(max(pid), 0) FROM Payments));");
+		reset();
+	}
+
+	/**
+	 * Method to forget every cached block, for example after the tables were
+	 * reloaded and the sequences reseeded.
+	 */
+	public void reset() {
+		synchronized (this._ranges) {
+			this._ranges.clear();
+		}
+	}
+
+	private long reserveBlock(String sequence) throws SQLException {
+		List<List<String>> result = this._esql.executeQueryAndReturnResult("select nextval(?);", sequence);
+		return Long.parseLong(result.get(0).get(0));
+	}
+
+	private Range range(String sequence) {
+		synchronized (this._ranges) {
+			Range range = this._ranges.get(sequence);
+			if (range == null) {
+				range = new Range();
+				this._ranges.put(sequence, range);
+			}
+			return range;
+		}
+	}
+
+	// ids next..end (inclusive) are reserved but not yet handed out
+	private static class Range {
+		long next = 1;
+		long end = 0;
+	}
+}
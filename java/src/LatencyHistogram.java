@@ -0,0 +1,115 @@
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * This class records latencies into log-linear buckets in the manner of an
+ * HDR histogram: every power of two is split into 32 equal sub-buckets, so any
+ * recorded value is reported within about 3% while the histogram stays a fixed
+ * 16 KB regardless of how many values it holds. Recording is lock-free and
+ * safe from any number of threads.
+ *
+ */
+
+public class LatencyHistogram {
+	private static final int SUB_BITS = 5;
+	private static final int SUB_COUNT = 1 << SUB_BITS;
+
+	private final AtomicLongArray _counts = new AtomicLongArray(64 * SUB_COUNT);
+	private final AtomicLong _count = new AtomicLong();
+	private final AtomicLong _sum = new AtomicLong();
+	private final AtomicLong _max = new AtomicLong();
+
+	/**
+	 * Method to record one value, normally a duration in nanoseconds.
+	 *
+	 * @param value a non-negative value; negative values count as 0
+	 */
+	public void record(long value) {
+		if (value < 0)
+			value = 0;
+		this._counts.incrementAndGet(index(value));
+		this._count.incrementAndGet();
+		this._sum.addAndGet(value);
+		long max;
+		while (value > (max = this._max.get()) && !this._max.compareAndSet(max, value))
+			;
+	}
+
+	public long count() {
+		return this._count.get();
+	}
+
+	public long max() {
+		return this._max.get();
+	}
+
+	public double mean() {
+		long count = this._count.get();
+		return count == 0 ? 0 : (double) this._sum.get() / count;
+	}
+
+	public long sum() {
+		return this._sum.get();
+	}
+
+	/**
+	 * Method to estimate a percentile.
+	 *
+	 * @param percentile between 0 and 100
+	 * @return the highest value equivalent to the bucket holding the percentile,
+	 *         or 0 when nothing was recorded
+	 */
+	public long percentile(double percentile) {
+		long count = this._count.get();
+		if (count == 0)
+			return 0;
+		long rank = Math.max(1, (long) Math.ceil(percentile / 100.0 * count));
+		long seen = 0;
+		for (int i = 0; i < this._counts.length(); i++) {
+			seen += this._counts.get(i);
+			if (seen >= rank)
+				return Math.min(highestEquivalent(i), max());
+		}
+		return max();
+	}
+
+	/**
+	 * Method to add every value recorded by another histogram to this one.
+	 */
+	public void add(LatencyHistogram other) {
+		for (int i = 0; i < this._counts.length(); i++) {
+			long c = other._counts.get(i);
+			if (c != 0)
+				this._counts.addAndGet(i, c);
+		}
+		this._count.addAndGet(other._count.get());
+		this._sum.addAndGet(other._sum.get());
+		long max;
+		long value = other._max.get();
+		while (value > (max = this._max.get()) && !this._max.compareAndSet(max, value))
+			;
+	}
+
+	public void reset() {
+		for (int i = 0; i < this._counts.length(); i++)
+			this._counts.set(i, 0);
+		this._count.set(0);
+		this._sum.set(0);
+		this._max.set(0);
+	}
+
+	static int index(long value) {
+		if (value < SUB_COUNT)
+			return (int) value;
+		int shift = 63 - Long.numberOfLeadingZeros(value) - SUB_BITS;
+		return ((shift + 1) << SUB_BITS) + (int) ((value >>> shift) & (SUB_COUNT - 1));
+	}
+
+	static long highestEquivalent(int index) {
+		if (index < SUB_COUNT)
+			return index;
+		int shift = (index >>> SUB_BITS) - 1;
+		long lowest = (long) (SUB_COUNT + (index & (SUB_COUNT - 1))) << shift;
+		return lowest + (1L << shift) - 1;
+	}
+}
@@ -0,0 +1,176 @@
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * This class maps primitive long keys to values without boxing, using open
+ * addressing with linear probing. It holds at most a fixed number of entries:
+ * inserting into a full map evicts one entry chosen by the CLOCK algorithm, so
+ * entries read since the hand last passed them survive. It is not thread-safe.
+ *
+ */
+
+public class LongMap<V> {
+	private final int _maxSize;
+	private long[] _keys;
+	private Object[] _values;
+	// CLOCK reference bits, set by get()
+	private boolean[] _referenced;
+	private int _size = 0;
+	private int _hand = 0;
+
+	public LongMap(int maxSize) {
+		if (maxSize < 1)
+			throw new IllegalArgumentException("maxSize must be positive");
+		this._maxSize = maxSize;
+		allocate(16);
+	}
+
+	private void allocate(int capacity) {
+		this._keys = new long[capacity];
+		this._values = new Object[capacity];
+		this._referenced = new boolean[capacity];
+	}
+
+	private static int hash(long key) {
+		long h = key * 0x9E3779B97F4A7C15L;
+		return (int) (h ^ (h >>> 32));
+	}
+
+	// slot holding the key, or the empty slot where it belongs
+	private int slot(long key) {
+		int mask = this._keys.length - 1;
+		int i = hash(key) & mask;
+		while (this._values[i] != null && this._keys[i] != key)
+			i = (i + 1) & mask;
+		return i;
+	}
+
+	@SuppressWarnings("unchecked")
+	public V get(long key) {
+		int i = slot(key);
+		if (this._values[i] == null)
+			return null;
+		this._referenced[i] = true;
+		return (V) this._values[i];
+	}
+
+	/**
+	 * Method to add or replace an entry.
+	 *
+	 * @return the value evicted to make room, or null
+	 */
+	@SuppressWarnings("unchecked")
+	public V put(long key, V value) {
+		if (value == null)
+			throw new IllegalArgumentException("null values are not supported");
+		int i = slot(key);
+		if (this._values[i] != null) {
+			this._values[i] = value;
+			return null;
+		}
+		V evicted = null;
+		if (this._size == this._maxSize) {
+			evicted = (V) evictOne();
+			i = slot(key);
+		} else if ((this._size + 1) * 2 > this._keys.length) {
+			grow();
+			i = slot(key);
+		}
+		this._keys[i] = key;
+		this._values[i] = value;
+		this._referenced[i] = false;
+		this._size++;
+		return evicted;
+	}
+
+	@SuppressWarnings("unchecked")
+	public V remove(long key) {
+		int i = slot(key);
+		V value = (V) this._values[i];
+		if (value != null)
+			delete(i);
+		return value;
+	}
+
+	public int size() {
+		return this._size;
+	}
+
+	public int maxSize() {
+		return this._maxSize;
+	}
+
+	/**
+	 * @return a snapshot of the values, in no particular order
+	 */
+	@SuppressWarnings("unchecked")
+	public List<V> values() {
+		List<V> values = new ArrayList<V>(this._size);
+		for (Object value : this._values)
+			if (value != null)
+				values.add((V) value);
+		return values;
+	}
+
+	public void clear() {
+		allocate(16);
+		this._size = 0;
+		this._hand = 0;
+	}
+
+	// advances the clock hand to an unreferenced entry and deletes it
+	private Object evictOne() {
+		int mask = this._keys.length - 1;
+		while (true) {
+			int i = this._hand;
+			this._hand = (this._hand + 1) & mask;
+			if (this._values[i] == null)
+				continue;
+			if (this._referenced[i]) {
+				this._referenced[i] = false;
+				continue;
+			}
+			Object value = this._values[i];
+			delete(i);
+			return value;
+		}
+	}
+
+	// backward-shift deletion keeps every probe chain unbroken without tombstones
+	private void delete(int i) {
+		int mask = this._keys.length - 1;
+		int j = i;
+		while (true) {
+			j = (j + 1) & mask;
+			if (this._values[j] == null)
+				break;
+			int home = hash(this._keys[j]) & mask;
+			boolean reachable = i <= j ? (i < home && home <= j) : (i < home || home <= j);
+			if (reachable)
+				continue;
+			this._keys[i] = this._keys[j];
+			this._values[i] = this._values[j];
+			this._referenced[i] = this._referenced[j];
+			i = j;
+		}
+		this._values[i] = null;
+		this._referenced[i] = false;
+		this._size--;
+	}
+
+	private void grow() {
+		long[] keys = this._keys;
+		Object[] values = this._values;
+		boolean[] referenced = this._referenced;
+		allocate(keys.length * 2);
+		for (int i = 0; i < keys.length; i++) {
+			if (values[i] != null) {
+				int j = slot(keys[i]);
+				this._keys[j] = keys[i];
+				this._values[j] = values[i];
+				this._referenced[j] = referenced[i];
+			}
+		}
+		this._hand = 0;
+	}
+}
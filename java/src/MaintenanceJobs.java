@@ -0,0 +1,257 @@
+import java.sql.SQLException;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * This class runs bulk booking maintenance in the background, one chunk of at
+ * most -Dmaintenance.chunkSize bookings (in bid order) per transaction, with a
+ * -Dmaintenance.pauseMillis pause between chunks so concurrent bookings are
+ * never blocked for long. Each chunk also removes the ShowSeats and Payments
+ * rows of its bookings.
+ *
+ * Progress is checkpointed in the maintenance_jobs table by the same
+ * transaction that processes a chunk. A job interrupted by a crash or by
+ * shutdown keeps its row and is resumed from the last committed bid by
+ * resumeAll() at the next startup; the row is deleted when the job finishes.
+ * Runners in several processes take turns on a job by locking its row.
+ *
+ * Progress is printed as it happens unless deferMessages() was called, as the
+ * interactive menu does so progress lines do not land in the middle of its
+ * prompts; the latest line of each job is then held until the menu thread
+ * prints it with printMessages() between operations.
+ *
+ */
+
+public class MaintenanceJobs {
+	/**
+	 * A bulk operation over the bookings in one status.
+	 */
+	public static class Job {
+		final String name;
+		final BookingStatus status;
+		final String remaining;
+		final String chunk;
+
+		// the chunk statement takes (after bid, chunk size), finds its bookings
+		// through the partial index on status_code, and returns the bid, sid and
+		// email of each booking it processed and the id of its transaction
+		Job(String name, BookingStatus status, String action) {
+			this.name = name;
+			this.status = status;
+			String where = "status_code = " + status.code() + " and bid > ?";
+			this.remaining = "select count(*) from bookings where " + where + ";";
+			this.chunk = "with chunk as (select bid, sid, email from bookings where " + where
+					+ " order by bid limit ? for update), "
+					+ "ss as (delete from showseats using chunk where showseats.bid = chunk.bid), "
+					+ "pay as (delete from payments using chunk where payments.bid = chunk.bid), "
+					+ "act as (" + action + ") select bid, sid, email, txid_current() from chunk order by bid;";
+		}
+
+		public String name() {
+			return this.name;
+		}
+	}
+
+	public static final Job CANCEL_PENDING = new Job("CancelPendingBookings", BookingStatus.PENDING,
+			"update bookings set status = '" + BookingStatus.CANCELLED.label()
+					+ "' from chunk where bookings.bid = chunk.bid");
+
+	public static final Job PURGE_CANCELLED = new Job("ClearCancelledBookings", BookingStatus.CANCELLED,
+			"delete from bookings using chunk where bookings.bid = chunk.bid");
+
+	private static final Job[] JOBS = { CANCEL_PENDING, PURGE_CANCELLED };
+
+	private final Ticketmaster _esql;
+	private final int _chunkSize;
+	private final long _pauseMillis;
+	private final ExecutorService _runner;
+	private final Set<String> _running = Collections.synchronizedSet(new HashSet<String>());
+	private volatile boolean _stopping = false;
+	private volatile boolean _deferMessages = false;
+	// latest progress line of each job, while messages are deferred
+	private final Map<String, String> _messages = new LinkedHashMap<String, String>();
+
+	public MaintenanceJobs(Ticketmaster esql) {
+		this._esql = esql;
+		this._chunkSize = Integer.getInteger("maintenance.chunkSize", 5000);
+		this._pauseMillis = Long.getLong("maintenance.pauseMillis", 50L);
+		this._runner = Executors.newSingleThreadExecutor(new ThreadFactory() {
+			public Thread newThread(Runnable r) {
+				Thread t = new Thread(r, "maintenance");
+				t.setDaemon(true);
+				return t;
+			}
+		});
+	}
+
+	/**
+	 * Method to start a job in the background unless it is already running in
+	 * this process. Jobs run one at a time, in submission order.
+	 *
+	 * @param job CANCEL_PENDING or PURGE_CANCELLED
+	 * @return the number of bookings the job will have processed, or null when
+	 *         it was already running
+	 */
+	public Future<Long> submit(final Job job) {
+		if (!this._running.add(job.name))
+			return null;
+		return this._runner.submit(new Callable<Long>() {
+			public Long call() throws SQLException {
+				try {
+					return run(job);
+				} catch (SQLException e) {
+					report(job, "stopped, will resume at next start: " + e.getMessage());
+					throw e;
+				} finally {
+					_running.remove(job.name);
+				}
+			}
+		});
+	}
+
+	/**
+	 * Method to resume every job left unfinished by an earlier run.
+	 *
+	 * @return the number of jobs resumed
+	 * @throws java.sql.SQLException when the checkpoints could not be read
+	 */
+	public int resumeAll() throws SQLException {
+		int resumed = 0;
+		for (List<String> row : this._esql.executeQueryAndReturnResult("select job from maintenance_jobs order by started;")) {
+			for (Job job : JOBS) {
+				if (job.name.equals(row.get(0)) && submit(job) != null) {
+					System.out.println("Resuming maintenance job " + job.name);
+					resumed++;
+				}
+			}
+		}
+		return resumed;
+	}
+
+	/**
+	 * Method to run a job to completion on the calling thread, or until
+	 * close() is called.
+	 *
+	 * @param job CANCEL_PENDING or PURGE_CANCELLED
+	 * @return the number of bookings processed by this call
+	 * @throws java.sql.SQLException when a chunk failed; it is rolled back and
+	 *                               the job can be resumed
+	 */
+	public long run(final Job job) throws SQLException {
+		this._esql.setOperation(job.name);
+		this._esql.executeUpdate("insert into maintenance_jobs (job, last_bid, processed) values (?, 0, 0) "
+				+ "on conflict (job) do nothing;", job.name);
+		List<List<String>> checkpoint = this._esql.executeQueryAndReturnResult(
+				"select last_bid, processed from maintenance_jobs where job = ?;", job.name);
+		if (checkpoint.isEmpty())
+			return 0;
+		long done = Long.parseLong(checkpoint.get(0).get(1));
+		long total = done + Long.parseLong(this._esql.executeQueryAndReturnResult(job.remaining,
+				Long.parseLong(checkpoint.get(0).get(0))).get(0).get(0));
+
+		long start = System.nanoTime();
+		long processed = 0;
+		while (!this._stopping) {
+			List<List<String>> chunk = this._esql.inTransaction(new Ticketmaster.Transaction<List<List<String>>>() {
+				public List<List<String>> run() throws SQLException {
+					// the row lock makes runners in other processes wait for this chunk
+					List<List<String>> checkpoint = _esql.executeQueryAndReturnResult(
+							"select last_bid from maintenance_jobs where job = ? for update;", job.name);
+					if (checkpoint.isEmpty())
+						return null;
+					long after = Long.parseLong(checkpoint.get(0).get(0));
+					List<List<String>> chunk = _esql.executeQueryAndReturnResult(job.chunk, after, _chunkSize);
+					if (chunk.isEmpty()) {
+						_esql.executeUpdate("delete from maintenance_jobs where job = ?;", job.name);
+						return null;
+					}
+					_esql.executeUpdate("update maintenance_jobs set last_bid = ?, processed = processed + ?, "
+							+ "updated = now() where job = ?;", chunk.get(chunk.size() - 1).get(0), chunk.size(), job.name);
+					return chunk;
+				}
+			});
+			if (chunk == null)
+				break;
+
+			Set<String> sids = new HashSet<String>();
+			for (List<String> booking : chunk) {
+				if (sids.add(booking.get(1)))
+					this._esql.seats().invalidate(Long.parseLong(booking.get(1)));
+				this._esql.itinerary().invalidate(booking.get(2));
+				if (job.status == BookingStatus.PENDING)
+					this._esql.pending().removed(booking.get(2), 1, Long.parseLong(booking.get(3)));
+			}
+			processed += chunk.size();
+			done += chunk.size();
+			double seconds = (System.nanoTime() - start) / 1e9;
+			report(job, String.format("%d/%d bookings, %.0f/sec", done, Math.max(done, total), processed / seconds));
+
+			try {
+				Thread.sleep(this._pauseMillis);
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				break;
+			}
+		}
+		if (!this._stopping)
+			report(job, String.format("done: %d bookings in %.2fs", processed, (System.nanoTime() - start) / 1e9));
+		return processed;
+	}
+
+	private void report(Job job, String message) {
+		String line = "[" + job.name + "] " + message;
+		if (!this._deferMessages) {
+			System.out.println(line);
+			return;
+		}
+		synchronized (this._messages) {
+			// a later line of a job replaces the one not printed yet
+			this._messages.remove(job.name);
+			this._messages.put(job.name, line);
+		}
+	}
+
+	/**
+	 * Method to hold progress lines until printMessages() is called, for
+	 * callers that share the terminal with prompts.
+	 */
+	public void deferMessages() {
+		this._deferMessages = true;
+	}
+
+	/**
+	 * Method to print the progress lines held since the last call, on the
+	 * calling thread.
+	 */
+	public void printMessages() {
+		synchronized (this._messages) {
+			for (String line : this._messages.values())
+				System.out.println(line);
+			this._messages.clear();
+		}
+	}
+
+	/**
+	 * Method to stop after the chunk in progress; unfinished jobs resume at the
+	 * next start.
+	 */
+	public void close() {
+		this._stopping = true;
+		this._runner.shutdown();
+		try {
+			this._runner.awaitTermination(30, TimeUnit.SECONDS);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+	}
+}
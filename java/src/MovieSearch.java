@@ -0,0 +1,211 @@
+import java.sql.Date;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Locale;
+
+/**
+ * This class finds movies whose title contains a term, case-insensitively,
+ * optionally within a release date range. In the database the search is an
+ * ILIKE served by the pg_trgm GIN index on Movies.title and a plain range on
+ * the rdate index (see SchemaMigrator), so neither a leading wildcard nor a
+ * function over rdate forces a sequential scan. On servers without pg_trgm the
+ * migration skips the trigram index and the same ILIKE scans Movies; the
+ * in-memory index below does not need the extension.
+ *
+ * With -Dsearch.inMemory=true, searches are answered from a trigram index
+ * over the movies held by the ReferenceDataCache instead, as long as that
+ * cache holds the whole catalog. The index is rebuilt on the first search
+ * after the cached movies change.
+ *
+ */
+
+public class MovieSearch {
+	private static final String SELECT = "select mvid, title, rdate, duration from movies where title ilike ?";
+
+	private static final Comparator<ReferenceDataCache.Movie> BY_TITLE = new Comparator<ReferenceDataCache.Movie>() {
+		public int compare(ReferenceDataCache.Movie a, ReferenceDataCache.Movie b) {
+			int c = a.name().compareTo(b.name());
+			return c != 0 ? c : Long.compare(a.id(), b.id());
+		}
+	};
+
+	private final Ticketmaster _esql;
+	private final boolean _inMemory;
+	private volatile TrigramIndex _index = null;
+
+	public MovieSearch(Ticketmaster esql) {
+		this._esql = esql;
+		this._inMemory = Boolean.getBoolean("search.inMemory");
+	}
+
+	/**
+	 * Method to search the catalog.
+	 *
+	 * @param term  text the title must contain, in any case; empty matches all
+	 * @param from  earliest release date, inclusive, or null
+	 * @param to    latest release date, inclusive, or null
+	 * @param limit the most movies to return
+	 * @return the matching movies ordered by title
+	 * @throws java.sql.SQLException when the query failed
+	 */
+	public List<ReferenceDataCache.Movie> search(String term, Date from, Date to, int limit) throws SQLException {
+		if (this._inMemory && this._esql.refdata().moviesComplete())
+			return index().search(term.toLowerCase(Locale.ROOT), from, to, limit);
+
+		StringBuilder sql = new StringBuilder(SELECT);
+		List<Object> params = new ArrayList<Object>();
+		params.add("%" + escapeLike(term) + "%");
+		if (from != null) {
+			sql.append(" and rdate >= ?");
+			params.add(from);
+		}
+		if (to != null) {
+			sql.append(" and rdate <= ?");
+			params.add(to);
+		}
+		sql.append(" order by title, mvid limit ?;");
+		params.add(limit);
+
+		final List<ReferenceDataCache.Movie> movies = new ArrayList<ReferenceDataCache.Movie>();
+		this._esql.streamQuery(sql.toString(), new Ticketmaster.RowHandler() {
+			public void row(Row row) throws SQLException {
+				movies.add(new ReferenceDataCache.Movie(row.getLong(1), row.getString(2), row.getDate(3), row.getInt(4)));
+			}
+		}, params.toArray());
+		return movies;
+	}
+
+	// LIKE treats % and _ as wildcards and \ as the escape character
+	static String escapeLike(String term) {
+		return term.replace("\\", "\\\\").replace("%", "\\%").replace("_", "\\_");
+	}
+
+	private TrigramIndex index() {
+		long version = this._esql.refdata().moviesVersion();
+		TrigramIndex index = this._index;
+		if (index != null && index.version == version)
+			return index;
+		synchronized (this) {
+			index = this._index;
+			if (index == null || index.version != version)
+				this._index = index = new TrigramIndex(version, this._esql.refdata().movies());
+			return index;
+		}
+	}
+
+	/**
+	 * Posting lists from every three-character sequence of the lower-cased
+	 * titles to the ids of the movies containing it. Immutable once built.
+	 */
+	private static class TrigramIndex {
+		final long version;
+		final LongMap<ReferenceDataCache.Movie> movies;
+		final LongMap<long[]> postings = new LongMap<long[]>(Integer.MAX_VALUE);
+		final List<ReferenceDataCache.Movie> all;
+
+		TrigramIndex(long version, List<ReferenceDataCache.Movie> catalog) {
+			this.version = version;
+			this.movies = new LongMap<ReferenceDataCache.Movie>(Math.max(1, catalog.size()));
+			this.all = new ArrayList<ReferenceDataCache.Movie>(catalog);
+			Collections.sort(this.all, BY_TITLE);
+
+			// ids are added in ascending order, so every list comes out sorted
+			List<ReferenceDataCache.Movie> byId = new ArrayList<ReferenceDataCache.Movie>(catalog);
+			Collections.sort(byId, new Comparator<ReferenceDataCache.Movie>() {
+				public int compare(ReferenceDataCache.Movie a, ReferenceDataCache.Movie b) {
+					return Long.compare(a.id(), b.id());
+				}
+			});
+			LongMap<int[]> sizes = new LongMap<int[]>(Integer.MAX_VALUE);
+			for (ReferenceDataCache.Movie movie : byId) {
+				this.movies.put(movie.id(), movie);
+				String title = movie.name().toLowerCase(Locale.ROOT);
+				for (int i = 0; i + 3 <= title.length(); i++) {
+					long trigram = trigram(title, i);
+					long[] list = this.postings.get(trigram);
+					int[] size = sizes.get(trigram);
+					if (list == null) {
+						list = new long[4];
+						size = new int[1];
+						this.postings.put(trigram, list);
+						sizes.put(trigram, size);
+					} else if (list[size[0] - 1] == movie.id()) {
+						continue;
+					} else if (size[0] == list.length) {
+						list = Arrays.copyOf(list, list.length * 2);
+						this.postings.put(trigram, list);
+					}
+					list[size[0]++] = movie.id();
+				}
+			}
+			for (ReferenceDataCache.Movie movie : byId) {
+				String title = movie.name().toLowerCase(Locale.ROOT);
+				for (int i = 0; i + 3 <= title.length(); i++) {
+					long trigram = trigram(title, i);
+					long[] list = this.postings.get(trigram);
+					int size = sizes.get(trigram)[0];
+					if (list.length != size)
+						this.postings.put(trigram, Arrays.copyOf(list, size));
+				}
+			}
+		}
+
+		static long trigram(String s, int i) {
+			return ((long) s.charAt(i) << 32) | ((long) s.charAt(i + 1) << 16) | s.charAt(i + 2);
+		}
+
+		List<ReferenceDataCache.Movie> search(String term, Date from, Date to, int limit) {
+			List<ReferenceDataCache.Movie> candidates;
+			if (term.length() < 3) {
+				candidates = this.all;
+			} else {
+				long[] ids = null;
+				for (int i = 0; i + 3 <= term.length(); i++) {
+					long[] list = this.postings.get(trigram(term, i));
+					if (list == null)
+						return new ArrayList<ReferenceDataCache.Movie>();
+					ids = ids == null ? list : intersect(ids, list);
+				}
+				candidates = new ArrayList<ReferenceDataCache.Movie>(ids.length);
+				for (long id : ids)
+					candidates.add(this.movies.get(id));
+				Collections.sort(candidates, BY_TITLE);
+			}
+
+			// trigrams only narrow the candidates; the title must still contain the term
+			List<ReferenceDataCache.Movie> found = new ArrayList<ReferenceDataCache.Movie>();
+			for (ReferenceDataCache.Movie movie : candidates) {
+				if (found.size() == limit)
+					break;
+				if (from != null && movie.releaseDate().before(from))
+					continue;
+				if (to != null && movie.releaseDate().after(to))
+					continue;
+				if (movie.name().toLowerCase(Locale.ROOT).contains(term))
+					found.add(movie);
+			}
+			return found;
+		}
+
+		private static long[] intersect(long[] a, long[] b) {
+			long[] out = new long[Math.min(a.length, b.length)];
+			int i = 0, j = 0, n = 0;
+			while (i < a.length && j < b.length) {
+				if (a[i] < b[j])
+					i++;
+				else if (a[i] > b[j])
+					j++;
+				else {
+					out[n++] = a[i];
+					i++;
+					j++;
+				}
+			}
+			return Arrays.copyOf(out, n);
+		}
+	}
+}
@@ -0,0 +1,409 @@
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * This class cancels bookings and refunds their payments through a queue. A
+ * background worker takes up to -Dpayments.batchSize queued requests at a
+ * time, waiting up to -Dpayments.lingerMillis for a batch to fill, and handles
+ * the whole batch in one transaction with a fixed number of statements: the
+ * bookings are locked, their Payments rows deleted with RETURNING, their
+ * ShowSeats released and their status set to Cancelled together, so a crash
+ * never leaves a cancelled booking with its payment or a refunded one still
+ * active.
+ *
+ * Every request carries an idempotency key, recorded in payment_cancellations
+ * by the transaction that does the work. A request whose key was already
+ * processed changes nothing and reports the earlier refund, so a client that
+ * retries after a timeout or a failed batch cannot refund twice. The queue
+ * depth, totals and throughput are exported as metrics gauges.
+ *
+ */
+
+public class PaymentPipeline {
+	private static final String DEADLOCK = "40P01";
+
+	// claims the keys of requests for existing bookings (of the given user, if any)
+	private static final String CLAIM = "insert into payment_cancellations (idem_key, bid) "
+			+ "select v.idem_key, v.bid from unnest(?::varchar[], ?::bigint[], ?::varchar[]) as v(idem_key, bid, email) "
+			+ "join bookings b on b.bid = v.bid and (v.email is null or b.email = v.email) "
+			+ "on conflict (idem_key) do nothing returning idem_key, bid;";
+
+	// earlier outcomes of keys, for bookings that still exist (of the given user, if any)
+	private static final String EARLIER = "select c.idem_key, c.bid, c.refunded from payment_cancellations c "
+			+ "join unnest(?::varchar[], ?::varchar[]) as v(idem_key, email) on v.idem_key = c.idem_key "
+			+ "left join bookings b on b.bid = c.bid where v.email is null or b.email = v.email;";
+
+	private static final String CANCEL = "with old as (select bid, sid, email, status_code from bookings "
+			+ "where bid = any(?::bigint[]) for update), "
+			+ "pay as (delete from payments p using old where p.bid = old.bid returning p.bid, p.amount), "
+			+ "seats as (delete from showseats ss using old where ss.bid = old.bid), "
+			+ "upd as (update bookings b set status = '" + BookingStatus.CANCELLED.label() + "' from old "
+			+ "where b.bid = old.bid and old.status_code <> " + BookingStatus.CANCELLED.code() + ") "
+			+ "select old.bid, old.sid, old.email, old.status_code, pay.amount, txid_current() "
+			+ "from old left join pay on pay.bid = old.bid;";
+
+	private static final String RECORD = "update payment_cancellations c set refunded = v.amount "
+			+ "from unnest(?::bigint[], ?::real[]) as v(bid, amount) where c.bid = v.bid and c.idem_key = any(?::varchar[]);";
+
+	/**
+	 * The outcome of one request.
+	 */
+	public static class Refund {
+		public enum Outcome {
+			CANCELLED, ALREADY_PROCESSED, NOT_FOUND
+		}
+
+		final long bid;
+		final Outcome outcome;
+		final Double amount;
+
+		Refund(long bid, Outcome outcome, Double amount) {
+			this.bid = bid;
+			this.outcome = outcome;
+			this.amount = amount;
+		}
+
+		public long bid() {
+			return this.bid;
+		}
+
+		public Outcome outcome() {
+			return this.outcome;
+		}
+
+		/**
+		 * @return the payment amount refunded, or null when the booking had none
+		 */
+		public Double amount() {
+			return this.amount;
+		}
+	}
+
+	private static class Request {
+		final String key;
+		final long bid;
+		final String email;
+		final CompletableFuture<Refund> result = new CompletableFuture<Refund>();
+
+		Request(String key, long bid, String email) {
+			this.key = key;
+			this.bid = bid;
+			this.email = email;
+		}
+	}
+
+	private final Ticketmaster _esql;
+	private final int _batchSize;
+	private final long _lingerMillis;
+	private final LinkedBlockingQueue<Request> _queue = new LinkedBlockingQueue<Request>();
+	private final AtomicLong _cancelled = new AtomicLong();
+	private final AtomicLong _batches = new AtomicLong();
+	private final AtomicLong _busyNanos = new AtomicLong();
+	private Thread _worker = null;
+	private volatile boolean _closed = false;
+
+	public PaymentPipeline(Ticketmaster esql) {
+		this._esql = esql;
+		this._batchSize = Integer.getInteger("payments.batchSize", 500);
+		this._lingerMillis = Long.getLong("payments.lingerMillis", 5L);
+	}
+
+	/**
+	 * Method to queue the cancellation of a booking under the key "cancel:bid",
+	 * so cancelling the same booking again is a no-op.
+	 *
+	 * @param bid the booking
+	 * @return the pending outcome
+	 */
+	public Future<Refund> cancel(long bid) {
+		return cancel("cancel:" + bid, bid, null);
+	}
+
+	/**
+	 * Method to queue the cancellation of a booking.
+	 *
+	 * @param key   idempotency key; a key seen before returns the earlier outcome
+	 * @param bid   the booking
+	 * @param email the user the booking must belong to, or null
+	 * @return the pending outcome; NOT_FOUND when there is no such booking
+	 */
+	public Future<Refund> cancel(String key, long bid, String email) {
+		if (this._closed)
+			throw new IllegalStateException("the payment pipeline is closed");
+		if (key == null || key.isEmpty() || key.length() > 64)
+			throw new IllegalArgumentException("the idempotency key must have 1 to 64 characters");
+		Request request = new Request(key, bid, email);
+		startWorker();
+		this._queue.add(request);
+		return request.result;
+	}
+
+	/**
+	 * Method to cancel a booking of a user through the queue and wait for it.
+	 *
+	 * @param bid   the booking
+	 * @param email the user the booking must belong to
+	 * @return the outcome
+	 * @throws java.sql.SQLException when the batch failed; retrying is safe
+	 */
+	public Refund cancelAndWait(long bid, String email) throws SQLException {
+		Future<Refund> result = cancel("cancel:" + bid, bid, email);
+		try {
+			return result.get();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new SQLException("Interrupted while cancelling booking " + bid);
+		} catch (ExecutionException e) {
+			if (e.getCause() instanceof SQLException)
+				throw (SQLException) e.getCause();
+			if (e.getCause() instanceof RuntimeException)
+				throw (RuntimeException) e.getCause();
+			throw new SQLException(e.getCause());
+		}
+	}
+
+	/**
+	 * Method to queue the cancellation of several bookings.
+	 *
+	 * @param bids the bookings
+	 * @return the pending outcomes, in the order of bids
+	 */
+	public List<Future<Refund>> cancelAll(long[] bids) {
+		List<Future<Refund>> results = new ArrayList<Future<Refund>>(bids.length);
+		for (long bid : bids)
+			results.add(cancel(bid));
+		return results;
+	}
+
+	public int queueDepth() {
+		return this._queue.size();
+	}
+
+	public long cancelled() {
+		return this._cancelled.get();
+	}
+
+	public long batches() {
+		return this._batches.get();
+	}
+
+	/**
+	 * @return requests handled per second of worker time spent in batches
+	 */
+	public double throughput() {
+		long busy = this._busyNanos.get();
+		return busy == 0 ? 0 : this._cancelled.get() / (busy / 1e9);
+	}
+
+	private synchronized void startWorker() {
+		if (this._worker != null)
+			return;
+		this._worker = new Thread(new Runnable() {
+			public void run() {
+				work();
+			}
+		}, "payment-pipeline");
+		this._worker.setDaemon(true);
+		this._worker.start();
+	}
+
+	private void work() {
+		this._esql.setOperation("RemovePayment");
+		List<Request> batch = new ArrayList<Request>();
+		while (!this._closed || !this._queue.isEmpty()) {
+			try {
+				Request first = this._queue.poll(200, TimeUnit.MILLISECONDS);
+				if (first == null)
+					continue;
+				batch.add(first);
+				long deadline = System.nanoTime() + this._lingerMillis * 1000000L;
+				while (batch.size() < this._batchSize) {
+					long wait = deadline - System.nanoTime();
+					Request next = wait > 0 ? this._queue.poll(wait, TimeUnit.NANOSECONDS) : this._queue.poll();
+					if (next == null)
+						break;
+					batch.add(next);
+				}
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				break;
+			}
+
+			long start = System.nanoTime();
+			try {
+				process(batch);
+			} catch (SQLException e) {
+				// nothing was committed, so every request may simply be retried
+				for (Request request : batch)
+					request.result.completeExceptionally(e);
+			} catch (RuntimeException e) {
+				for (Request request : batch)
+					request.result.completeExceptionally(e);
+			}
+			this._busyNanos.addAndGet(System.nanoTime() - start);
+			this._batches.incrementAndGet();
+			batch.clear();
+		}
+	}
+
+	private void process(List<Request> batch) throws SQLException {
+		// one request per key; later duplicates in the batch share its outcome
+		final Map<String, Request> byKey = new LinkedHashMap<String, Request>();
+		final Map<String, List<Request>> duplicates = new HashMap<String, List<Request>>();
+		for (Request request : batch) {
+			if (byKey.containsKey(request.key)) {
+				List<Request> same = duplicates.get(request.key);
+				if (same == null)
+					duplicates.put(request.key, same = new ArrayList<Request>());
+				same.add(request);
+			} else {
+				byKey.put(request.key, request);
+			}
+		}
+
+		final Map<String, Refund> outcomes = new HashMap<String, Refund>();
+		final List<List<String>> changed = new ArrayList<List<String>>();
+		for (int attempt = 0;; attempt++) {
+			outcomes.clear();
+			changed.clear();
+			try {
+				this._esql.inTransaction(new Ticketmaster.Transaction<Integer>() {
+					public Integer run() throws SQLException {
+						return cancelBatch(byKey, outcomes, changed);
+					}
+				});
+				break;
+			} catch (SQLException e) {
+				if (attempt == 2 || !DEADLOCK.equals(e.getSQLState()))
+					throw e;
+			}
+		}
+
+		// caches are only touched once the batch is committed
+		for (List<String> booking : changed) {
+			this._esql.seats().invalidate(Long.parseLong(booking.get(1)));
+			this._esql.itinerary().invalidate(booking.get(2));
+			if (Integer.parseInt(booking.get(3)) == BookingStatus.PENDING.code())
+				this._esql.pending().removed(booking.get(2), 1, Long.parseLong(booking.get(5)));
+		}
+		for (Request request : byKey.values()) {
+			Refund refund = outcomes.get(request.key);
+			if (refund.outcome == Refund.Outcome.CANCELLED)
+				this._cancelled.incrementAndGet();
+			request.result.complete(refund);
+			List<Request> same = duplicates.get(request.key);
+			if (same != null)
+				for (Request duplicate : same)
+					duplicate.result.complete(new Refund(refund.bid, Refund.Outcome.ALREADY_PROCESSED, refund.amount));
+		}
+	}
+
+	// fills outcomes by key and changed with (bid, sid, email, old status code, amount, txid)
+	private int cancelBatch(Map<String, Request> byKey, Map<String, Refund> outcomes, List<List<String>> changed)
+			throws SQLException {
+		int n = byKey.size();
+		String[] keys = new String[n];
+		Long[] bids = new Long[n];
+		String[] emails = new String[n];
+		int i = 0;
+		for (Request request : byKey.values()) {
+			keys[i] = request.key;
+			bids[i] = request.bid;
+			emails[i] = request.email;
+			i++;
+		}
+
+		Map<Long, List<String>> claimed = new HashMap<Long, List<String>>();
+		for (List<String> row : this._esql.executeQueryAndReturnResult(CLAIM, this._esql.createArray("varchar", keys),
+				this._esql.createArray("int8", bids), this._esql.createArray("varchar", emails))) {
+			Long bid = Long.valueOf(row.get(1));
+			List<String> claimedKeys = claimed.get(bid);
+			if (claimedKeys == null)
+				claimed.put(bid, claimedKeys = new ArrayList<String>());
+			claimedKeys.add(row.get(0));
+		}
+
+		List<String> unclaimed = new ArrayList<String>();
+		List<String> unclaimedEmails = new ArrayList<String>();
+		for (Request request : byKey.values()) {
+			if (!claimed.containsKey(request.bid) || !claimed.get(request.bid).contains(request.key)) {
+				unclaimed.add(request.key);
+				unclaimedEmails.add(request.email);
+			}
+		}
+		if (!unclaimed.isEmpty()) {
+			for (List<String> row : this._esql.executeQueryAndReturnResult(EARLIER,
+					this._esql.createArray("varchar", unclaimed.toArray()),
+					this._esql.createArray("varchar", unclaimedEmails.toArray()))) {
+				Double amount = row.get(2) == null ? null : Double.valueOf(row.get(2));
+				outcomes.put(row.get(0), new Refund(Long.parseLong(row.get(1)), Refund.Outcome.ALREADY_PROCESSED, amount));
+			}
+			for (String key : unclaimed)
+				if (!outcomes.containsKey(key))
+					outcomes.put(key, new Refund(byKey.get(key).bid, Refund.Outcome.NOT_FOUND, null));
+		}
+		if (claimed.isEmpty())
+			return 0;
+
+		List<String> claimedKeys = new ArrayList<String>();
+		for (List<String> keysOfBid : claimed.values())
+			claimedKeys.addAll(keysOfBid);
+		List<Long> refundedBids = new ArrayList<Long>();
+		List<Float> refundedAmounts = new ArrayList<Float>();
+		for (List<String> row : this._esql.executeQueryAndReturnResult(CANCEL,
+				this._esql.createArray("int8", claimed.keySet().toArray()))) {
+			Long bid = Long.valueOf(row.get(0));
+			Double amount = row.get(4) == null ? null : Double.valueOf(row.get(4));
+			if (amount != null) {
+				refundedBids.add(bid);
+				refundedAmounts.add(amount.floatValue());
+			}
+			// the first key claimed for a booking does the work; any other key for it in this batch sees it done
+			List<String> keysOfBid = claimed.get(bid);
+			int k = 0;
+			if (Integer.parseInt(row.get(3)) != BookingStatus.CANCELLED.code()) {
+				changed.add(row);
+				outcomes.put(keysOfBid.get(k++), new Refund(bid, Refund.Outcome.CANCELLED, amount));
+			}
+			for (; k < keysOfBid.size(); k++)
+				outcomes.put(keysOfBid.get(k), new Refund(bid, Refund.Outcome.ALREADY_PROCESSED, amount));
+		}
+		// a booking deleted since it was claimed, by a purge say, has nothing left to cancel
+		for (String key : claimedKeys)
+			if (!outcomes.containsKey(key))
+				outcomes.put(key, new Refund(byKey.get(key).bid, Refund.Outcome.NOT_FOUND, null));
+		if (!refundedBids.isEmpty())
+			this._esql.executeUpdate(RECORD, this._esql.createArray("int8", refundedBids.toArray()),
+					this._esql.createArray("float4", refundedAmounts.toArray()),
+					this._esql.createArray("varchar", claimedKeys.toArray()));
+		return claimed.size();
+	}
+
+	/**
+	 * Method to stop accepting requests and let the worker finish the queue.
+	 */
+	public void close() {
+		this._closed = true;
+		Thread worker;
+		synchronized (this) {
+			worker = this._worker;
+		}
+		if (worker == null)
+			return;
+		try {
+			worker.join(10000);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+	}
+}
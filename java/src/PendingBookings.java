@@ -0,0 +1,145 @@
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * This class keeps the number of pending bookings of every user in memory, so
+ * the pending-user report does not have to search Bookings. The counts are
+ * loaded with one grouped scan of the partial index on pending bookings and
+ * then kept current by the paths that create or end pending bookings in this
+ * process, after they commit. They are reloaded when older than
+ * -Dpending.maxAgeMillis, to pick up writes made by other processes, and when
+ * invalidated after a bulk change.
+ *
+ * A load records the snapshot its query ran in, and every change is reported
+ * with the id of the transaction that made it, so a change the loaded counts
+ * already include is not applied a second time, however late it is reported.
+ *
+ */
+
+public class PendingBookings {
+	// one row even when nothing is pending, so the snapshot always comes back
+	private static final String LOAD = "select s.snapshot, c.email, c.n "
+			+ "from (select txid_current_snapshot()::text as snapshot) s left join (select email, count(*) as n from bookings where status_code = " + BookingStatus.PENDING.code()
+			+ " group by email) c on true;";
+
+	/** Query the writers run inside their transaction for the id to report changes with. */
+	public static final String TXID = "select txid_current();";
+
+	private final Ticketmaster _esql;
+	private final long _maxAgeMillis;
+	// null until loaded or after invalidate()
+	private Map<String, int[]> _counts = null;
+	private long _total = 0;
+	private long _loadedAt = 0;
+	// the snapshot of the last load: xmin, xmax and the ids in progress, sorted
+	private long _xmin = 0;
+	private long _xmax = 0;
+	private long[] _inProgress = new long[0];
+
+	public PendingBookings(Ticketmaster esql) {
+		this._esql = esql;
+		this._maxAgeMillis = Long.getLong("pending.maxAgeMillis", 60000L);
+	}
+
+	/**
+	 * @return the users with at least one pending booking, in email order
+	 * @throws java.sql.SQLException when the counts could not be loaded
+	 */
+	public List<String> users() throws SQLException {
+		List<String> users;
+		synchronized (this) {
+			users = new ArrayList<String>(load().keySet());
+		}
+		Collections.sort(users);
+		return users;
+	}
+
+	/**
+	 * @return the number of pending bookings
+	 * @throws java.sql.SQLException when the counts could not be loaded
+	 */
+	public synchronized long count() throws SQLException {
+		load();
+		return this._total;
+	}
+
+	/**
+	 * Method to record pending bookings made by a user.
+	 *
+	 * @param txid the id of the committed transaction that made them
+	 */
+	public synchronized void added(String email, int bookings, long txid) {
+		if (this._counts == null || loaded(txid))
+			return;
+		int[] count = this._counts.get(email);
+		if (count == null)
+			this._counts.put(email, count = new int[1]);
+		count[0] += bookings;
+		this._total += bookings;
+	}
+
+	/**
+	 * Method to record pending bookings of a user that were paid, cancelled or
+	 * deleted.
+	 *
+	 * @param txid the id of the committed transaction that ended them
+	 */
+	public synchronized void removed(String email, int bookings, long txid) {
+		if (bookings == 0 || this._counts == null || loaded(txid))
+			return;
+		int[] count = this._counts.get(email);
+		if (count == null)
+			return;
+		int n = Math.min(count[0], bookings);
+		count[0] -= n;
+		this._total -= n;
+		if (count[0] == 0)
+			this._counts.remove(email);
+	}
+
+	/**
+	 * Method to drop the counts so the next call reloads them.
+	 */
+	public synchronized void invalidate() {
+		this._counts = null;
+	}
+
+	// whether the last load's snapshot saw the transaction's changes
+	private boolean loaded(long txid) {
+		return txid < this._xmin || (txid < this._xmax && Arrays.binarySearch(this._inProgress, txid) < 0);
+	}
+
+	// called with the lock held, so changes reported meanwhile wait for the new snapshot
+	private Map<String, int[]> load() throws SQLException {
+		if (this._counts != null && System.currentTimeMillis() - this._loadedAt <= this._maxAgeMillis)
+			return this._counts;
+		Map<String, int[]> counts = new HashMap<String, int[]>();
+		long total = 0;
+		List<List<String>> rows = this._esql.executeQueryAndReturnResult(LOAD);
+		for (List<String> row : rows) {
+			if (row.get(1) == null)
+				continue;
+			int n = Integer.parseInt(row.get(2));
+			counts.put(row.get(1), new int[] { n });
+			total += n;
+		}
+		// xmin:xmax:xip,xip,...
+		String[] snapshot = rows.get(0).get(0).split(":", -1);
+		this._xmin = Long.parseLong(snapshot[0]);
+		this._xmax = Long.parseLong(snapshot[1]);
+		String[] ids = snapshot[2].isEmpty() ? new String[0] : snapshot[2].split(",");
+		this._inProgress = new long[ids.length];
+		for (int i = 0; i < ids.length; i++)
+			this._inProgress[i] = Long.parseLong(ids[i]);
+		Arrays.sort(this._inProgress);
+		this._counts = counts;
+		this._total = total;
+		this._loadedAt = System.currentTimeMillis();
+		return counts;
+	}
+}
@@ -0,0 +1,280 @@
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.PrintWriter;
+import java.io.StringWriter;
+import java.io.Writer;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.util.Date;
+import java.util.Locale;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+/**
+ * This class times every statement the application executes. Statements are
+ * grouped by the menu operation that issued them and by query shape (the SQL
+ * text with its whitespace collapsed; values are always bound, so the text
+ * does not vary with them). Each group keeps a latency histogram, and counts
+ * of rows, bytes of column values read and errors.
+ *
+ * The metrics are exported in the Prometheus text format on
+ * http://localhost:&lt;-Dmetrics.port&gt;/metrics and, with -Dmetrics.file,
+ * rewritten to that file every -Dmetrics.dumpSeconds. Statements slower than
+ * -Dmetrics.slowMillis are logged to -Dmetrics.slowLog, or to standard error,
+ * with the types and lengths of their bound parameters (the values too with
+ * -Dlog.paramValues=true).
+ *
+ */
+
+public class QueryMetrics {
+	private static final double[] QUANTILES = { 0.5, 0.9, 0.99, 0.999 };
+
+	private final ConcurrentHashMap<String, Series> _series = new ConcurrentHashMap<String, Series>();
+	private final ConcurrentHashMap<String, String> _shapes = new ConcurrentHashMap<String, String>();
+	private final ConcurrentHashMap<String, Gauge> _gauges = new ConcurrentHashMap<String, Gauge>();
+	private final ConcurrentHashMap<String, String> _gaugeHelp = new ConcurrentHashMap<String, String>();
+	private final long _slowNanos;
+	private PrintWriter _slowLog = null;
+	private HttpServer _server = null;
+	private Thread _dumper = null;
+	private File _dumpFile = null;
+
+	public QueryMetrics(long slowMillis) {
+		this._slowNanos = slowMillis <= 0 ? Long.MAX_VALUE : slowMillis * 1000000L;
+	}
+
+	/**
+	 * A value sampled when the metrics are exported, such as a queue depth.
+	 */
+	public interface Gauge {
+		double value();
+	}
+
+	/**
+	 * Measurements of one query shape issued by one operation.
+	 */
+	static class Series {
+		final String operation;
+		final String query;
+		final LatencyHistogram latency = new LatencyHistogram();
+		final AtomicLong rows = new AtomicLong();
+		final AtomicLong bytes = new AtomicLong();
+		final AtomicLong errors = new AtomicLong();
+
+		Series(String operation, String query) {
+			this.operation = operation;
+			this.query = query;
+		}
+	}
+
+	/**
+	 * Method to create the metrics configured by the -Dmetrics.* properties and
+	 * start their endpoint and file dump, if any.
+	 */
+	public static QueryMetrics fromSystemProperties() throws IOException {
+		QueryMetrics metrics = new QueryMetrics(Long.getLong("metrics.slowMillis", 0L));
+		String slowLog = System.getProperty("metrics.slowLog");
+		if (slowLog != null)
+			metrics._slowLog = new PrintWriter(new OutputStreamWriter(new FileOutputStream(slowLog, true), "UTF-8"));
+		else if (metrics._slowNanos != Long.MAX_VALUE)
+			metrics._slowLog = new PrintWriter(new OutputStreamWriter(System.err, "UTF-8"));
+		Integer port = Integer.getInteger("metrics.port");
+		if (port != null)
+			metrics.serve(port);
+		String file = System.getProperty("metrics.file");
+		if (file != null)
+			metrics.dumpEvery(new File(file), Long.getLong("metrics.dumpSeconds", 60L));
+		return metrics;
+	}
+
+	/**
+	 * Method to record one executed statement.
+	 *
+	 * @param operation the menu operation that issued it
+	 * @param sql       the statement text
+	 * @param params    the values bound to its placeholders
+	 * @param nanos     how long it ran
+	 * @param rows      rows returned or affected; negative when it failed
+	 * @param bytes     approximate bytes of column values read
+	 */
+	public void record(String operation, String sql, Object[] params, long nanos, long rows, long bytes) {
+		String shape = this._shapes.get(sql);
+		if (shape == null) {
+			shape = shape(sql);
+			this._shapes.put(sql, shape);
+		}
+		String key = operation + '\u0000' + shape;
+		Series series = this._series.get(key);
+		if (series == null) {
+			Series created = new Series(operation, shape);
+			series = this._series.putIfAbsent(key, created);
+			if (series == null)
+				series = created;
+		}
+		series.latency.record(nanos);
+		if (rows < 0)
+			series.errors.incrementAndGet();
+		else
+			series.rows.addAndGet(rows);
+		series.bytes.addAndGet(bytes);
+
+		if (nanos >= this._slowNanos && this._slowLog != null) {
+			synchronized (this._slowLog) {
+				this._slowLog.printf(Locale.ROOT, "%s slow query [%s] %.1fms, %d rows: %s%n    params: %s%n",
+						new Date(), operation, nanos / 1e6, rows, series.query, QueryPlanRecorder.describe(params));
+				this._slowLog.flush();
+			}
+		}
+	}
+
+	/**
+	 * Method to export a value that is sampled on every scrape.
+	 *
+	 * @param name  the metric name, such as ticketmaster_pool_idle
+	 * @param help  a one line description
+	 * @param gauge supplies the current value
+	 */
+	public void gauge(String name, String help, Gauge gauge) {
+		this._gaugeHelp.put(name, help);
+		this._gauges.put(name, gauge);
+	}
+
+	static String shape(String sql) {
+		String shape = sql.trim().replaceAll("\\s+", " ");
+		return shape.endsWith(";") ? shape.substring(0, shape.length() - 1) : shape;
+	}
+
+	/**
+	 * Method to write every metric in the Prometheus text exposition format.
+	 */
+	public void write(Writer writer) {
+		PrintWriter out = new PrintWriter(writer);
+		// sorted so consecutive dumps can be diffed
+		Map<String, Series> series = new TreeMap<String, Series>(this._series);
+
+		out.println("# HELP ticketmaster_query_seconds Statement latency by menu operation and query shape.");
+		out.println("# TYPE ticketmaster_query_seconds summary");
+		for (Series s : series.values()) {
+			String labels = labels(s);
+			for (double q : QUANTILES)
+				out.printf(Locale.ROOT, "ticketmaster_query_seconds{%s,quantile=\"%s\"} %.9f%n", labels, q,
+						s.latency.percentile(q * 100) / 1e9);
+			out.printf(Locale.ROOT, "ticketmaster_query_seconds_sum{%s} %.9f%n", labels, s.latency.sum() / 1e9);
+			out.printf(Locale.ROOT, "ticketmaster_query_seconds_count{%s} %d%n", labels, s.latency.count());
+		}
+		counter(out, series, "rows", "Rows returned or affected by successful statements.");
+		counter(out, series, "bytes", "Approximate bytes of column values read.");
+		counter(out, series, "errors", "Statements that failed.");
+
+		for (Map.Entry<String, Gauge> gauge : new TreeMap<String, Gauge>(this._gauges).entrySet()) {
+			String name = gauge.getKey();
+			out.println("# HELP " + name + " " + this._gaugeHelp.get(name));
+			out.println("# TYPE " + name + " gauge");
+			out.printf(Locale.ROOT, "%s %s%n", name, gauge.getValue().value());
+		}
+		out.flush();
+	}
+
+	private static void counter(PrintWriter out, Map<String, Series> series, String what, String help) {
+		String name = "ticketmaster_query_" + what + "_total";
+		out.println("# HELP " + name + " " + help);
+		out.println("# TYPE " + name + " counter");
+		for (Series s : series.values()) {
+			long value = what.equals("rows") ? s.rows.get() : what.equals("bytes") ? s.bytes.get() : s.errors.get();
+			out.printf(Locale.ROOT, "%s{%s} %d%n", name, labels(s), value);
+		}
+	}
+
+	private static String labels(Series s) {
+		return "operation=\"" + escape(s.operation) + "\",query=\"" + escape(s.query) + "\"";
+	}
+
+	private static String escape(String value) {
+		return value.replace("\\", "\\\\").replace("\"", "\\\"").replace("\n", "\\n");
+	}
+
+	/**
+	 * Method to serve the metrics on the loopback interface.
+	 *
+	 * @param port the port to listen on
+	 * @throws java.io.IOException when the port could not be bound
+	 */
+	public void serve(int port) throws IOException {
+		this._server = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), port), 0);
+		this._server.createContext("/metrics", new HttpHandler() {
+			public void handle(HttpExchange exchange) throws IOException {
+				StringWriter body = new StringWriter();
+				write(body);
+				byte[] bytes = body.toString().getBytes("UTF-8");
+				exchange.getResponseHeaders().set("Content-Type", "text/plain; version=0.0.4; charset=utf-8");
+				exchange.sendResponseHeaders(200, bytes.length);
+				OutputStream out = exchange.getResponseBody();
+				out.write(bytes);
+				out.close();
+			}
+		});
+		this._server.start();
+		System.out.println("Serving metrics on http://localhost:" + port + "/metrics");
+	}
+
+	/**
+	 * Method to rewrite a file with the current metrics periodically, and once
+	 * more on close().
+	 *
+	 * @param file    the file to replace
+	 * @param seconds the interval between dumps
+	 */
+	public void dumpEvery(File file, final long seconds) {
+		this._dumpFile = file;
+		this._dumper = new Thread(new Runnable() {
+			public void run() {
+				try {
+					while (!Thread.currentThread().isInterrupted()) {
+						Thread.sleep(seconds * 1000);
+						dump();
+					}
+				} catch (InterruptedException e) {
+					// closing
+				}
+			}
+		}, "metrics-dump");
+		this._dumper.setDaemon(true);
+		this._dumper.start();
+	}
+
+	private void dump() {
+		// written next to the target and renamed, so readers never see half a file
+		File tmp = new File(this._dumpFile.getPath() + ".tmp");
+		try (Writer out = new OutputStreamWriter(new FileOutputStream(tmp), "UTF-8")) {
+			write(out);
+		} catch (IOException e) {
+			System.err.println("Metrics dump failed: " + e.getMessage());
+			return;
+		}
+		if (!tmp.renameTo(this._dumpFile))
+			System.err.println("Metrics dump failed: cannot replace " + this._dumpFile);
+	}
+
+	/**
+	 * Method to stop the endpoint and the periodic dump, writing a final dump.
+	 */
+	public void close() {
+		if (this._server != null)
+			this._server.stop(0);
+		if (this._dumper != null) {
+			this._dumper.interrupt();
+			dump();
+		}
+		if (this._slowLog != null)
+			this._slowLog.flush();
+	}
+}
@@ -0,0 +1,127 @@
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.PrintWriter;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Savepoint;
+import java.util.Arrays;
+import java.util.Date;
+
+/**
+ * This class captures EXPLAIN (ANALYZE, BUFFERS) output for every statement
+ * the application runs, tagged with the menu operation that issued it. It is
+ * enabled with -Dexplain.file=&lt;path&gt; and appends to that file.
+ *
+ * EXPLAIN ANALYZE really executes the statement, so the capture runs under a
+ * savepoint (or a throwaway transaction in autocommit mode) that is rolled
+ * back before the statement itself is executed. Bound parameters are logged
+ * by type and length only, since they include passwords and emails, unless
+ * -Dlog.paramValues=true.
+ *
+ */
+
+public class QueryPlanRecorder {
+	private final PrintWriter _out;
+
+	public QueryPlanRecorder(File file) throws IOException {
+		this._out = new PrintWriter(new OutputStreamWriter(new FileOutputStream(file, true), "UTF-8"));
+	}
+
+	/**
+	 * Method to create the recorder configured by -Dexplain.file, if any.
+	 *
+	 * @return the recorder, or null when plan capture is off
+	 */
+	public static QueryPlanRecorder fromSystemProperties() throws IOException {
+		String file = System.getProperty("explain.file");
+		return file == null ? null : new QueryPlanRecorder(new File(file));
+	}
+
+	/**
+	 * Method to record the plan of a statement. Statements EXPLAIN cannot
+	 * handle, such as DDL, are skipped. Failures are written to the log instead
+	 * of being thrown.
+	 *
+	 * @param c         the connection the statement is about to run on
+	 * @param operation the menu operation issuing the statement
+	 * @param sql       the statement text
+	 * @param params    the values bound to its placeholders
+	 */
+	public void capture(Connection c, String operation, String sql, Object[] params) {
+		String verb = sql.trim().split("\\s+", 2)[0].toLowerCase();
+		if (!verb.equals("select") && !verb.equals("insert") && !verb.equals("update") && !verb.equals("delete")
+				&& !verb.equals("with"))
+			return;
+
+		StringBuilder plan = new StringBuilder();
+		try {
+			boolean autoCommit = c.getAutoCommit();
+			Savepoint savepoint = null;
+			if (autoCommit)
+				c.setAutoCommit(false);
+			else
+				savepoint = c.setSavepoint();
+			try {
+				PreparedStatement stmt = c.prepareStatement("EXPLAIN (ANALYZE, BUFFERS) " + sql);
+				try {
+					for (int i = 0; i < params.length; i++)
+						stmt.setObject(i + 1, params[i]);
+					ResultSet rs = stmt.executeQuery();
+					while (rs.next())
+						plan.append("    ").append(rs.getString(1)).append('\n');
+					rs.close();
+				} finally {
+					stmt.close();
+				}
+			} finally {
+				if (autoCommit) {
+					c.rollback();
+					c.setAutoCommit(true);
+				} else {
+					c.rollback(savepoint);
+					c.releaseSavepoint(savepoint);
+				}
+			}
+		} catch (SQLException e) {
+			plan.append("    EXPLAIN failed: ").append(e.getMessage()).append('\n');
+		}
+
+		synchronized (this._out) {
+			this._out.println("=== " + new Date() + " [" + operation + "] " + sql);
+			if (params.length > 0)
+				this._out.println("    params: " + describe(params));
+			this._out.print(plan);
+			this._out.flush();
+		}
+	}
+
+	/**
+	 * Method to describe bound parameters for a log without their values,
+	 * such as [String(12), Long, null], unless -Dlog.paramValues is set.
+	 *
+	 * @param params the values bound to a statement's placeholders
+	 * @return the description
+	 */
+	static String describe(Object[] params) {
+		if (Boolean.getBoolean("log.paramValues"))
+			return Arrays.toString(params);
+		StringBuilder out = new StringBuilder("[");
+		for (int i = 0; i < params.length; i++) {
+			if (i > 0)
+				out.append(", ");
+			Object param = params[i];
+			if (param == null) {
+				out.append("null");
+			} else {
+				out.append(param.getClass().getSimpleName());
+				if (param instanceof CharSequence)
+					out.append('(').append(((CharSequence) param).length()).append(')');
+			}
+		}
+		return out.append(']').toString();
+	}
+}
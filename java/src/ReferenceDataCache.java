@@ -0,0 +1,583 @@
+import java.sql.Connection;
+import java.sql.Date;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.postgresql.PGConnection;
+import org.postgresql.PGNotification;
+
+/**
+ * This class keeps the rarely changing reference tables (Movies, Cinemas,
+ * Theaters and Cities) in memory, keyed by id in primitive LongMaps and
+ * indexed by name, so resolving a title or a name to an id costs no round
+ * trip. Everything is loaded at startup; afterwards a listener session
+ * receives the NOTIFY messages sent by the refdata_notify triggers (see
+ * SchemaMigrator) and reloads just the rows that changed.
+ *
+ * Each table holds at most -Drefdata.maxEntries rows. Once a table has evicted
+ * rows it is no longer complete, and lookups that miss read through to the
+ * database instead of answering "not found".
+ *
+ */
+
+public class ReferenceDataCache {
+	// NOTIFY channel used by the triggers; payloads are "<table>:<op>:<id>"
+	public static final String CHANNEL = "refdata";
+	// changes to one table in one poll above which the whole table is reloaded
+	private static final int BULK_CHANGES = 100;
+
+	private static final String MOVIES = "select mvid, title, rdate, duration from movies";
+	private static final String CINEMAS = "select cid, city_id, cname, tnum from cinemas";
+	private static final String THEATERS = "select tid, cid, tname, tseats from theaters";
+	private static final String CITIES = "select city_id, city_name, city_state from cities";
+
+	private final Ticketmaster _esql;
+	private final long _pollMillis;
+	private final Table<Movie> _movies;
+	private final Table<Cinema> _cinemas;
+	private final Table<Theater> _theaters;
+	private final Table<City> _cities;
+	private Thread _listener = null;
+	private volatile boolean _closed = false;
+
+	public ReferenceDataCache(Ticketmaster esql) {
+		this._esql = esql;
+		this._pollMillis = Long.getLong("refdata.pollMillis", 500L);
+		int maxEntries = Integer.getInteger("refdata.maxEntries", 100000);
+		this._movies = new Table<Movie>(MOVIES, "mvid", "title", maxEntries);
+		this._cinemas = new Table<Cinema>(CINEMAS, "cid", "cname", maxEntries);
+		this._theaters = new Table<Theater>(THEATERS, "tid", "tname", maxEntries);
+		this._cities = new Table<City>(CITIES, "city_id", "city_name", maxEntries);
+	}
+
+	/**
+	 * A cached row: its id and the name it is indexed by.
+	 */
+	interface Record {
+		long id();
+
+		String name();
+	}
+
+	public static class Movie implements Record {
+		private final long _mvid;
+		private final String _title;
+		private final Date _releaseDate;
+		private final int _duration;
+
+		Movie(long mvid, String title, Date releaseDate, int duration) {
+			this._mvid = mvid;
+			this._title = title;
+			this._releaseDate = releaseDate;
+			this._duration = duration;
+		}
+
+		public long id() {
+			return this._mvid;
+		}
+
+		public String name() {
+			return this._title;
+		}
+
+		public Date releaseDate() {
+			return this._releaseDate;
+		}
+
+		/**
+		 * @return the running time in seconds
+		 */
+		public int duration() {
+			return this._duration;
+		}
+	}
+
+	public static class Cinema implements Record {
+		private final long _cid;
+		private final long _cityId;
+		private final String _cname;
+		private final int _theaters;
+
+		Cinema(long cid, long cityId, String cname, int theaters) {
+			this._cid = cid;
+			this._cityId = cityId;
+			this._cname = cname;
+			this._theaters = theaters;
+		}
+
+		public long id() {
+			return this._cid;
+		}
+
+		public String name() {
+			return this._cname;
+		}
+
+		public long cityId() {
+			return this._cityId;
+		}
+
+		public int theaters() {
+			return this._theaters;
+		}
+	}
+
+	public static class Theater implements Record {
+		private final long _tid;
+		private final long _cid;
+		private final String _tname;
+		private final long _seats;
+
+		Theater(long tid, long cid, String tname, long seats) {
+			this._tid = tid;
+			this._cid = cid;
+			this._tname = tname;
+			this._seats = seats;
+		}
+
+		public long id() {
+			return this._tid;
+		}
+
+		public String name() {
+			return this._tname;
+		}
+
+		public long cinemaId() {
+			return this._cid;
+		}
+
+		public long seats() {
+			return this._seats;
+		}
+	}
+
+	public static class City implements Record {
+		private final long _cityId;
+		private final String _name;
+		private final String _state;
+
+		City(long cityId, String name, String state) {
+			this._cityId = cityId;
+			this._name = name;
+			this._state = state;
+		}
+
+		public long id() {
+			return this._cityId;
+		}
+
+		public String name() {
+			return this._name;
+		}
+
+		public String state() {
+			return this._state;
+		}
+	}
+
+	/**
+	 * The cached rows of one table with their name index. Callers synchronize
+	 * on the table.
+	 */
+	private class Table<R extends Record> {
+		final String select;
+		final String idColumn;
+		final String nameColumn;
+		final LongMap<R> rows;
+		final Map<String, long[]> byName = new HashMap<String, long[]>();
+		// true while every row of the table is cached
+		boolean complete = false;
+		long evictions = 0;
+		// bumped on every change, so derived indexes know when to rebuild
+		long version = 0;
+
+		Table(String select, String idColumn, String nameColumn, int maxEntries) {
+			this.select = select;
+			this.idColumn = idColumn;
+			this.nameColumn = nameColumn;
+			this.rows = new LongMap<R>(maxEntries);
+		}
+
+		void put(R row) {
+			this.version++;
+			R old = this.rows.get(row.id());
+			if (old != null)
+				unindex(old);
+			R evicted = this.rows.put(row.id(), row);
+			if (evicted != null) {
+				unindex(evicted);
+				this.evictions++;
+				this.complete = false;
+			}
+			long[] ids = this.byName.get(row.name());
+			if (ids == null) {
+				ids = new long[] { row.id() };
+			} else {
+				ids = Arrays.copyOf(ids, ids.length + 1);
+				ids[ids.length - 1] = row.id();
+				Arrays.sort(ids);
+			}
+			this.byName.put(row.name(), ids);
+		}
+
+		void remove(long id) {
+			this.version++;
+			R old = this.rows.remove(id);
+			if (old != null)
+				unindex(old);
+		}
+
+		private void unindex(R row) {
+			long[] ids = this.byName.get(row.name());
+			if (ids == null)
+				return;
+			long[] kept = new long[ids.length];
+			int n = 0;
+			for (long id : ids)
+				if (id != row.id())
+					kept[n++] = id;
+			if (n == 0)
+				this.byName.remove(row.name());
+			else
+				this.byName.put(row.name(), Arrays.copyOf(kept, n));
+		}
+
+		void clear() {
+			this.version++;
+			this.rows.clear();
+			this.byName.clear();
+			this.complete = false;
+		}
+	}
+
+	/**
+	 * Method to load every table and start listening for changes.
+	 *
+	 * @throws java.sql.SQLException when the tables could not be loaded
+	 */
+	public void start() throws SQLException {
+		final Connection session = this._esql.pool().connect();
+		try {
+			listen(session);
+			reload();
+		} catch (SQLException e) {
+			session.close();
+			throw e;
+		}
+		this._listener = new Thread(new Runnable() {
+			public void run() {
+				pollLoop(session);
+			}
+		}, "refdata-listener");
+		this._listener.setDaemon(true);
+		this._listener.start();
+	}
+
+	/**
+	 * Method to replace the cached contents of every table with the database's.
+	 *
+	 * @throws java.sql.SQLException when a table could not be loaded
+	 */
+	public void reload() throws SQLException {
+		reload(this._movies);
+		reload(this._cinemas);
+		reload(this._theaters);
+		reload(this._cities);
+	}
+
+	private <R extends Record> void reload(final Table<R> table) throws SQLException {
+		final long evictions;
+		synchronized (table) {
+			table.clear();
+			evictions = table.evictions;
+		}
+		this._esql.streamQuery(table.select + ";", new Ticketmaster.RowHandler() {
+			@SuppressWarnings("unchecked")
+			public void row(Row row) throws SQLException {
+				R record = (R) read(table, row);
+				synchronized (table) {
+					table.put(record);
+				}
+			}
+		});
+		synchronized (table) {
+			// a table that did not fit has evicted rows and stays incomplete
+			table.complete = table.evictions == evictions;
+		}
+	}
+
+	private Record read(Table<?> table, Row row) throws SQLException {
+		if (table == this._movies)
+			return new Movie(row.getLong(1), row.getString(2), row.getDate(3), row.getInt(4));
+		if (table == this._cinemas)
+			return new Cinema(row.getLong(1), row.getLong(2), row.getString(3), row.getInt(4));
+		if (table == this._theaters)
+			return new Theater(row.getLong(1), row.getLong(2), row.getString(3), row.getLong(4));
+		return new City(row.getLong(1), row.getString(2), row.getString(3));
+	}
+
+	/**
+	 * Method to read rows through to the database and cache them.
+	 *
+	 * @param column the column to filter on, the table's id or name column
+	 * @param value  the value to match, or an array for = any()
+	 * @return the rows found
+	 */
+	@SuppressWarnings("unchecked")
+	private <R extends Record> List<R> fetch(final Table<R> table, String column, Object value) throws SQLException {
+		final List<R> found = new ArrayList<R>();
+		String op = value instanceof java.sql.Array ? " = any(?)" : " = ?";
+		this._esql.streamQuery(table.select + " where " + column + op + ";", new Ticketmaster.RowHandler() {
+			public void row(Row row) throws SQLException {
+				found.add((R) read(table, row));
+			}
+		}, value);
+		synchronized (table) {
+			for (R row : found)
+				table.put(row);
+		}
+		return found;
+	}
+
+	private <R extends Record> R byId(Table<R> table, long id) throws SQLException {
+		synchronized (table) {
+			R row = table.rows.get(id);
+			if (row != null || table.complete)
+				return row;
+		}
+		List<R> found = fetch(table, table.idColumn, id);
+		return found.isEmpty() ? null : found.get(0);
+	}
+
+	private <R extends Record> List<R> byName(Table<R> table, String name) throws SQLException {
+		synchronized (table) {
+			long[] ids = table.byName.get(name);
+			if (ids != null || table.complete) {
+				List<R> rows = new ArrayList<R>();
+				if (ids != null)
+					for (long id : ids)
+						rows.add(table.rows.get(id));
+				return rows;
+			}
+		}
+		return fetch(table, table.nameColumn, name);
+	}
+
+	public Movie movie(long mvid) throws SQLException {
+		return byId(this._movies, mvid);
+	}
+
+	/**
+	 * Method to resolve a movie title.
+	 *
+	 * @return the movie with the lowest id among those with the title, or null
+	 */
+	public Movie movieByTitle(String title) throws SQLException {
+		List<Movie> movies = byName(this._movies, title);
+		return movies.isEmpty() ? null : movies.get(0);
+	}
+
+	/**
+	 * @return a snapshot of the cached movies, in no particular order
+	 */
+	public List<Movie> movies() {
+		synchronized (this._movies) {
+			return this._movies.rows.values();
+		}
+	}
+
+	/**
+	 * @return a number that changes whenever the cached movies change
+	 */
+	public long moviesVersion() {
+		synchronized (this._movies) {
+			return this._movies.version;
+		}
+	}
+
+	/**
+	 * @return true when every movie in the database is cached
+	 */
+	public boolean moviesComplete() {
+		synchronized (this._movies) {
+			return this._movies.complete;
+		}
+	}
+
+	public Cinema cinema(long cid) throws SQLException {
+		return byId(this._cinemas, cid);
+	}
+
+	/**
+	 * @return every cinema with the name, by ascending id
+	 */
+	public List<Cinema> cinemasByName(String cname) throws SQLException {
+		return byName(this._cinemas, cname);
+	}
+
+	public Theater theater(long tid) throws SQLException {
+		return byId(this._theaters, tid);
+	}
+
+	public Theater theaterByName(String tname) throws SQLException {
+		List<Theater> theaters = byName(this._theaters, tname);
+		return theaters.isEmpty() ? null : theaters.get(0);
+	}
+
+	public City city(long cityId) throws SQLException {
+		return byId(this._cities, cityId);
+	}
+
+	/**
+	 * @return the smallest and largest cached theater ids, or null when none are
+	 *         cached
+	 */
+	public long[] theaterIdRange() {
+		synchronized (this._theaters) {
+			if (this._theaters.rows.size() == 0)
+				return null;
+			long min = Long.MAX_VALUE, max = Long.MIN_VALUE;
+			for (Theater theater : this._theaters.rows.values()) {
+				min = Math.min(min, theater.id());
+				max = Math.max(max, theater.id());
+			}
+			return new long[] { min, max };
+		}
+	}
+
+	/**
+	 * Method to reload one row right away after this process changed it, rather
+	 * than waiting for its notification.
+	 *
+	 * @param table the table name, such as "movies"
+	 * @param id    the row id
+	 */
+	public void changed(String table, long id) throws SQLException {
+		apply(table(table), new long[] { id });
+	}
+
+	private Table<?> table(String name) {
+		if (name.equals("movies"))
+			return this._movies;
+		if (name.equals("cinemas"))
+			return this._cinemas;
+		if (name.equals("theaters"))
+			return this._theaters;
+		if (name.equals("cities"))
+			return this._cities;
+		throw new IllegalArgumentException("not a reference table: " + name);
+	}
+
+	// drops the rows, then reads back those that still exist
+	private <R extends Record> void apply(Table<R> table, long[] ids) throws SQLException {
+		synchronized (table) {
+			for (long id : ids)
+				table.remove(id);
+		}
+		Long[] boxed = new Long[ids.length];
+		for (int i = 0; i < ids.length; i++)
+			boxed[i] = ids[i];
+		fetch(table, table.idColumn, this._esql.createArray("int8", boxed));
+	}
+
+	private static void listen(Connection session) throws SQLException {
+		Statement stmt = session.createStatement();
+		try {
+			stmt.execute("LISTEN " + CHANNEL);
+		} finally {
+			stmt.close();
+		}
+	}
+
+	private void pollLoop(Connection session) {
+		this._esql.setOperation("ReferenceDataRefresh");
+		while (!this._closed) {
+			try {
+				Thread.sleep(this._pollMillis);
+				// the driver only reads notifications while it talks to the server
+				Statement stmt = session.createStatement();
+				try {
+					stmt.execute("select 1");
+				} finally {
+					stmt.close();
+				}
+				PGNotification[] notifications = ((PGConnection) session).getNotifications();
+				if (notifications != null)
+					process(notifications);
+			} catch (InterruptedException e) {
+				break;
+			} catch (SQLException e) {
+				System.err.println("Reference data listener: " + e.getMessage());
+				session = reconnect(session);
+			}
+		}
+		try {
+			session.close();
+		} catch (SQLException e) {
+			// ignored.
+		}
+	}
+
+	private void process(PGNotification[] notifications) throws SQLException {
+		Map<String, List<Long>> changes = new HashMap<String, List<Long>>();
+		for (PGNotification n : notifications) {
+			String[] parts = n.getParameter().split(":", 3);
+			List<Long> ids = changes.get(parts[0]);
+			if (ids == null)
+				changes.put(parts[0], ids = new ArrayList<Long>());
+			// a TRUNCATE carries no id; null asks for the whole table
+			ids.add(parts[1].equals("TRUNCATE") ? null : Long.valueOf(parts[2]));
+		}
+		for (Map.Entry<String, List<Long>> change : changes.entrySet()) {
+			Table<?> table = table(change.getKey());
+			List<Long> ids = change.getValue();
+			if (ids.size() > BULK_CHANGES || ids.contains(null)) {
+				reload(table);
+			} else {
+				long[] changed = new long[ids.size()];
+				for (int i = 0; i < changed.length; i++)
+					changed[i] = ids.get(i);
+				apply(table, changed);
+			}
+		}
+	}
+
+	// re-subscribes and reloads everything, since notifications sent while the
+	// session was down are lost
+	private Connection reconnect(Connection broken) {
+		try {
+			broken.close();
+		} catch (SQLException e) {
+			// ignored.
+		}
+		while (!this._closed) {
+			try {
+				Thread.sleep(Math.max(this._pollMillis, 1000L));
+				Connection session = this._esql.pool().connect();
+				listen(session);
+				reload();
+				return session;
+			} catch (InterruptedException e) {
+				break;
+			} catch (SQLException e) {
+				System.err.println("Reference data listener: " + e.getMessage());
+			}
+		}
+		return broken;
+	}
+
+	/**
+	 * Method to stop listening for changes.
+	 */
+	public void close() {
+		this._closed = true;
+		if (this._listener != null)
+			this._listener.interrupt();
+	}
+}
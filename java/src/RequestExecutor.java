@@ -0,0 +1,115 @@
+import java.io.IOException;
+import java.lang.reflect.Method;
+import java.sql.SQLException;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * This class runs each operation as its own task, on a new virtual thread per
+ * task when the JVM has them (Java 21 and later) and on a cached pool of
+ * platform threads otherwise. Tasks are cheap, so the number of operations in
+ * flight is not capped by a thread count; the connection pool is what limits
+ * how many of them reach the database at once, and the rest wait for a
+ * connection without holding an OS thread. Set -Dexecutor.virtual=false to
+ * force platform threads.
+ *
+ * Statements run while the driver holds a monitor, which pins the virtual
+ * thread to its carrier for the round trip, so keep pool.max at or below the
+ * number of carrier threads (the number of cores by default).
+ *
+ */
+
+public class RequestExecutor {
+	private final Ticketmaster _esql;
+	private final ExecutorService _tasks;
+	private final boolean _virtual;
+
+	public RequestExecutor(Ticketmaster esql) {
+		this._esql = esql;
+		ExecutorService virtual = null;
+		if (Boolean.parseBoolean(System.getProperty("executor.virtual", "true")))
+			virtual = newVirtualThreadPerTaskExecutor();
+		this._virtual = virtual != null;
+		this._tasks = virtual != null ? virtual : Executors.newCachedThreadPool();
+	}
+
+	// looked up reflectively so the code still compiles and runs on older JDKs
+	private static ExecutorService newVirtualThreadPerTaskExecutor() {
+		try {
+			Method factory = Executors.class.getMethod("newVirtualThreadPerTaskExecutor");
+			return (ExecutorService) factory.invoke(null);
+		} catch (ReflectiveOperationException e) {
+			return null;
+		}
+	}
+
+	/**
+	 * @return true when tasks run on virtual threads
+	 */
+	public boolean virtual() {
+		return this._virtual;
+	}
+
+	/**
+	 * Method to start an operation in the background.
+	 *
+	 * @param operation the name its statements are recorded under, or null
+	 * @param task      the operation
+	 * @return the pending result
+	 */
+	public <T> Future<T> submit(final String operation, final Callable<T> task) {
+		return this._tasks.submit(new Callable<T>() {
+			public T call() throws Exception {
+				_esql.setOperation(operation);
+				return task.call();
+			}
+		});
+	}
+
+	/**
+	 * Method to run an operation as a task and wait for it.
+	 *
+	 * @param operation the name its statements are recorded under, or null
+	 * @param task      the operation
+	 * @return what the task returned
+	 * @throws java.io.IOException   when the task threw one
+	 * @throws java.sql.SQLException when the task threw one
+	 */
+	public <T> T run(String operation, Callable<T> task) throws IOException, SQLException {
+		Future<T> result = submit(operation, task);
+		try {
+			return result.get();
+		} catch (InterruptedException e) {
+			result.cancel(true);
+			Thread.currentThread().interrupt();
+			throw new SQLException("Interrupted while waiting for " + operation);
+		} catch (ExecutionException e) {
+			Throwable cause = e.getCause();
+			if (cause instanceof IOException)
+				throw (IOException) cause;
+			if (cause instanceof SQLException)
+				throw (SQLException) cause;
+			if (cause instanceof RuntimeException)
+				throw (RuntimeException) cause;
+			if (cause instanceof Error)
+				throw (Error) cause;
+			throw new SQLException(cause);
+		}
+	}
+
+	/**
+	 * Method to stop accepting tasks and wait briefly for the running ones.
+	 */
+	public void close() {
+		this._tasks.shutdown();
+		try {
+			this._tasks.awaitTermination(10, TimeUnit.SECONDS);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+	}
+}
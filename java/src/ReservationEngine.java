@@ -0,0 +1,146 @@
+import java.sql.SQLException;
+
+/**
+ * This class books a set of seats for one show atomically. The booking row and
+ * every seat are written in a single transaction with one multi-row insert, so
+ * a booking costs a constant number of round trips however many seats it has.
+ * A seat that is already taken is detected by the UNIQUE(sid, csid) constraint
+ * on ShowSeats and rolls the whole booking back. The in-memory seat map of the
+ * show is updated after the commit.
+ *
+ */
+
+public class ReservationEngine {
+	// price charged per seat
+	public static final String SEAT_PRICE = "8";
+
+	private static final String UNIQUE_VIOLATION = "23505";
+	private static final String FOREIGN_KEY_VIOLATION = "23503";
+
+	private static final String INSERT_BOOKING = "insert into bookings (bid, status, bdatetime, seats, sid, email) "
+			+ "select ?, ?, s.sdate + s.sttime, ?, s.sid, ? from shows s where s.sid = ?;";
+
+	// one row per requested seat number, resolved against the show's theater;
+	// seats with a live hold of another holder are left out
+	private static final String INSERT_SEATS = "insert into showseats (ssid, sid, csid, bid, price) "
+			+ "select v.ssid, ?, cs.csid, ?, ? from unnest(?::bigint[], ?::int[]) as v(ssid, sno) "
+			+ "join cinemaseats cs on cs.sno = v.sno and cs.tid = (select min(tid) from plays where sid = ?) "
+			+ "where not exists (select 1 from seat_holds h where h.sid = ? and h.csid = cs.csid "
+			+ "and h.expires > now() and h.holder <> ?);";
+
+	private final Ticketmaster _esql;
+
+	public ReservationEngine(Ticketmaster esql) {
+		this._esql = esql;
+	}
+
+	/**
+	 * Thrown when one of the requested seats is already booked for the show.
+	 */
+	public static class SeatUnavailableException extends SQLException {
+		private static final long serialVersionUID = 1L;
+
+		public SeatUnavailableException(String message, Throwable cause) {
+			super(message, UNIQUE_VIOLATION, cause);
+		}
+	}
+
+	/**
+	 * Method to create a paid booking holding all of the given seats, or nothing
+	 * at all.
+	 *
+	 * @param email account making the booking
+	 * @param sid   show to book
+	 * @param snos  seat numbers in the show's theater
+	 * @return the new booking id
+	 * @throws SeatUnavailableException when any seat is already booked
+	 * @throws java.sql.SQLException    when the booking failed
+	 */
+	public long reserve(String email, long sid, int[] snos) throws SQLException {
+		return reserve(email, sid, snos, BookingStatus.PAID);
+	}
+
+	/**
+	 * Method to create a booking in the given status holding all of the given
+	 * seats, or nothing at all.
+	 *
+	 * @param email  account making the booking
+	 * @param sid    show to book
+	 * @param snos   seat numbers in the show's theater
+	 * @param status PAID, or PENDING for a booking still to be paid
+	 * @return the new booking id
+	 * @throws SeatUnavailableException when any seat is already booked
+	 * @throws java.sql.SQLException    when the booking failed
+	 */
+	public long reserve(String email, long sid, int[] snos, BookingStatus status) throws SQLException {
+		return reserve(email, sid, snos, status, null);
+	}
+
+	/**
+	 * Method to create a booking as above out of seats the holder holds. The
+	 * holds are deleted in the booking's transaction, which fails if any of
+	 * them has expired.
+	 *
+	 * @param holder the SeatHolds holder, or null to book seats nobody else
+	 *               holds
+	 * @throws SeatUnavailableException when any seat is already booked or is
+	 *                                  not held by the holder
+	 * @throws java.sql.SQLException    when the booking failed
+	 */
+	public long reserve(final String email, final long sid, final int[] snos, final BookingStatus status,
+			final String holder) throws SQLException {
+		if (snos.length == 0)
+			throw new IllegalArgumentException("no seats requested");
+		// no hold has the empty holder, so every live hold counts as someone else's
+		final String self = holder == null ? "" : holder;
+
+		final long bid = this._esql.ids().next(IdAllocator.BOOKINGS);
+		final long[] ssids = this._esql.ids().next(IdAllocator.SHOWSEATS, snos.length);
+		final Long[] boxedSsids = new Long[ssids.length];
+		final Integer[] boxedSnos = new Integer[snos.length];
+		for (int i = 0; i < snos.length; i++) {
+			boxedSsids[i] = ssids[i];
+			boxedSnos[i] = snos[i];
+		}
+
+		// id of the booking's transaction, for PendingBookings
+		final long[] txid = new long[1];
+		try {
+			this._esql.inTransaction(new Ticketmaster.Transaction<Long>() {
+				public Long run() throws SQLException {
+					int booked = _esql.executeUpdate(INSERT_BOOKING, bid, status.label(), snos.length, email, sid);
+					if (booked == 0)
+						throw new IllegalArgumentException("unknown show " + sid);
+					if (holder != null && _esql.holds().convert(sid, holder, boxedSnos) != snos.length)
+						throw new SeatUnavailableException("your hold on one of the seats has expired.", null);
+
+					int seated = _esql.executeUpdate(INSERT_SEATS, sid, bid, SEAT_PRICE,
+							_esql.createArray("int8", boxedSsids), _esql.createArray("int4", boxedSnos), sid, sid, self);
+					if (seated != snos.length && _esql.holds().heldByOthers(sid, boxedSnos, self))
+						throw new SeatUnavailableException("one of the requested seats is held by someone else.", null);
+					if (seated != snos.length)
+						throw new IllegalArgumentException("some of the requested seats do not exist in show " + sid);
+					if (status == BookingStatus.PENDING)
+						txid[0] = Long.parseLong(_esql.executeQueryAndReturnResult(PendingBookings.TXID).get(0).get(0));
+					return bid;
+				}
+			});
+		} catch (SeatUnavailableException e) {
+			throw e;
+		} catch (SQLException e) {
+			if (UNIQUE_VIOLATION.equals(e.getSQLState())) {
+				// our seat map offered a seat someone else booked, so it is stale
+				this._esql.seats().invalidate(sid);
+				throw new SeatUnavailableException("one of the requested seats is already booked.", e);
+			}
+			if (FOREIGN_KEY_VIOLATION.equals(e.getSQLState()))
+				throw new IllegalArgumentException("unknown user " + email);
+			throw e;
+		}
+		this._esql.seats().taken(sid, snos);
+		this._esql.itinerary().invalidate(email);
+		if (status == BookingStatus.PENDING)
+			this._esql.pending().added(email, 1, txid[0]);
+		return bid;
+	}
+}
@@ -0,0 +1,389 @@
+import java.io.BufferedWriter;
+import java.io.FileDescriptor;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.sql.SQLException;
+import java.sql.Types;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+
+/**
+ * This class writes query results through a buffered writer in one of three
+ * formats, chosen with -Doutput.format:
+ *
+ * <pre>
+ * tsv    tab-separated values with a header line (the default)
+ * table  columns padded to a common width, in blocks of -Doutput.pageSize rows
+ * jsonl  one JSON object per row; numbers and booleans are not quoted
+ * </pre>
+ *
+ * Output goes to standard out, or is appended to -Doutput.file. Large listings
+ * can be read a page at a time: page() runs the query once per page of
+ * -Doutput.pageSize rows, continuing after the last key it printed (keyset
+ * pagination), so no cursor or connection is held between pages and a later
+ * page costs the same as the first.
+ *
+ */
+
+public class ResultRenderer {
+	public enum Format {
+		TSV, TABLE, JSONL
+	}
+
+	/**
+	 * Decides after each full page whether to fetch the next one.
+	 */
+	public interface Pager {
+		boolean more(int rowsSoFar) throws IOException;
+	}
+
+	private static final Pager ALL_PAGES = new Pager() {
+		public boolean more(int rowsSoFar) {
+			return true;
+		}
+	};
+
+	private final Ticketmaster _esql;
+	private final Format _format;
+	private final int _pageSize;
+	private final String _file;
+
+	public ResultRenderer(Ticketmaster esql) {
+		this._esql = esql;
+		this._format = Format.valueOf(System.getProperty("output.format", "tsv").toUpperCase(Locale.ROOT));
+		this._pageSize = Math.max(1, Integer.getInteger("output.pageSize", 50));
+		this._file = System.getProperty("output.file");
+	}
+
+	/**
+	 * @return true when results go to a file rather than the terminal
+	 */
+	public boolean toFile() {
+		return this._file != null;
+	}
+
+	/**
+	 * Method to write the whole result of a query.
+	 *
+	 * @param query  the query with '?' placeholders
+	 * @param params values for the placeholders
+	 * @return the number of rows written
+	 * @throws java.sql.SQLException when the query failed
+	 */
+	public int print(String query, Object... params) throws SQLException {
+		Sink sink = open();
+		try {
+			return this._esql.streamQuery(query, sink, params);
+		} finally {
+			close(sink);
+		}
+	}
+
+	/**
+	 * Method to write the result of a query a page at a time, in key order.
+	 *
+	 * @param query  the query with '?' placeholders; any ORDER BY is replaced
+	 * @param key    a result column that is unique and never null
+	 * @param pager  asked after every full page whether to go on, or null to
+	 *               write every page
+	 * @param params values for the placeholders
+	 * @return the number of rows written
+	 * @throws java.sql.SQLException when a page query failed
+	 * @throws java.io.IOException   when the pager failed
+	 */
+	public int page(String query, String key, Pager pager, Object... params) throws SQLException, IOException {
+		String inner = query.trim();
+		if (inner.endsWith(";"))
+			inner = inner.substring(0, inner.length() - 1);
+		String first = "select * from (" + inner + ") q order by q." + key + " limit ?;";
+		String next = "select * from (" + inner + ") q where q." + key + " > ? order by q." + key + " limit ?;";
+		Object[] firstParams = append(params, this._pageSize);
+		if (pager == null)
+			pager = ALL_PAGES;
+
+		Sink sink = open();
+		sink.keyColumn = key;
+		int total = 0;
+		try {
+			String after = null;
+			while (true) {
+				int rows = after == null ? this._esql.streamQuery(first, sink, firstParams)
+						: this._esql.streamQuery(next, sink, append(append(params, after), this._pageSize));
+				total += rows;
+				if (rows < this._pageSize)
+					break;
+				after = sink.lastKey;
+				if (after == null)
+					throw new IllegalArgumentException("the result has no non-null column " + key + " to page by");
+				sink.endPage();
+				sink.out.flush();
+				if (!pager.more(total))
+					break;
+			}
+		} finally {
+			close(sink);
+		}
+		return total;
+	}
+
+	private static void close(Sink sink) throws SQLException {
+		try {
+			sink.close();
+		} catch (IOException e) {
+			throw new SQLException("Cannot write the result", e);
+		}
+	}
+
+	private static Object[] append(Object[] params, Object value) {
+		Object[] all = new Object[params.length + 1];
+		System.arraycopy(params, 0, all, 0, params.length);
+		all[params.length] = value;
+		return all;
+	}
+
+	private Sink open() throws SQLException {
+		try {
+			OutputStream out;
+			if (this._file != null) {
+				out = new FileOutputStream(this._file, true);
+			} else {
+				// keep earlier prompts ahead of the rows
+				System.out.flush();
+				out = new FileOutputStream(FileDescriptor.out);
+			}
+			Writer writer = new BufferedWriter(new OutputStreamWriter(out, "UTF-8"), 1 << 16);
+			switch (this._format) {
+				case TABLE:
+					return new TableSink(writer, this._file != null, this._pageSize);
+				case JSONL:
+					return new JsonLinesSink(writer, this._file != null);
+				default:
+					return new TsvSink(writer, this._file != null);
+			}
+		} catch (IOException e) {
+			throw new SQLException("Cannot open output " + (this._file != null ? this._file : "stdout"), e);
+		}
+	}
+
+	/**
+	 * Receives the rows of one or more page queries and writes them.
+	 */
+	abstract static class Sink implements Ticketmaster.RowHandler {
+		final Writer out;
+		final boolean closeOut;
+		String[] names = null;
+		int[] types = null;
+		String keyColumn = null;
+		String lastKey = null;
+		private int _keyIndex = -1;
+
+		Sink(Writer out, boolean closeOut) {
+			this.out = out;
+			this.closeOut = closeOut;
+		}
+
+		public void row(Row row) throws SQLException {
+			try {
+				if (this.names == null) {
+					int n = row.columnCount();
+					this.names = new String[n];
+					this.types = new int[n];
+					for (int i = 0; i < n; i++) {
+						this.names[i] = row.columnName(i + 1);
+						this.types[i] = row.columnType(i + 1);
+						if (this.names[i].equals(this.keyColumn))
+							this._keyIndex = i;
+					}
+					header();
+				}
+				String[] values = new String[this.names.length];
+				for (int i = 0; i < values.length; i++)
+					values[i] = row.getString(i + 1);
+				if (this._keyIndex >= 0)
+					this.lastKey = values[this._keyIndex];
+				values(values);
+			} catch (IOException e) {
+				throw new SQLException("Cannot write the result", e);
+			}
+		}
+
+		abstract void header() throws IOException;
+
+		abstract void values(String[] values) throws IOException;
+
+		void endPage() throws IOException {
+		}
+
+		void close() throws IOException {
+			endPage();
+			if (this.closeOut)
+				this.out.close();
+			else
+				this.out.flush();
+		}
+	}
+
+	static class TsvSink extends Sink {
+		TsvSink(Writer out, boolean closeOut) {
+			super(out, closeOut);
+		}
+
+		void header() throws IOException {
+			values(this.names);
+		}
+
+		void values(String[] values) throws IOException {
+			for (int i = 0; i < values.length; i++) {
+				if (i > 0)
+					this.out.write('\t');
+				String v = values[i] == null ? "null" : values[i];
+				if (v.indexOf('\t') >= 0 || v.indexOf('\n') >= 0)
+					v = v.replace('\t', ' ').replace('\n', ' ');
+				this.out.write(v);
+			}
+			this.out.write('\n');
+		}
+	}
+
+	static class JsonLinesSink extends Sink {
+		JsonLinesSink(Writer out, boolean closeOut) {
+			super(out, closeOut);
+		}
+
+		void header() {
+		}
+
+		void values(String[] values) throws IOException {
+			this.out.write('{');
+			for (int i = 0; i < values.length; i++) {
+				if (i > 0)
+					this.out.write(',');
+				quote(this.names[i]);
+				this.out.write(':');
+				if (values[i] == null)
+					this.out.write("null");
+				else if (unquoted(this.types[i]))
+					this.out.write(this.types[i] == Types.BIT || this.types[i] == Types.BOOLEAN
+							? String.valueOf("t".equals(values[i]) || "true".equals(values[i]))
+							: values[i]);
+				else
+					quote(values[i]);
+			}
+			this.out.write("}\n");
+		}
+
+		private static boolean unquoted(int type) {
+			switch (type) {
+				case Types.TINYINT:
+				case Types.SMALLINT:
+				case Types.INTEGER:
+				case Types.BIGINT:
+				case Types.REAL:
+				case Types.FLOAT:
+				case Types.DOUBLE:
+				case Types.NUMERIC:
+				case Types.DECIMAL:
+				case Types.BIT:
+				case Types.BOOLEAN:
+					return true;
+				default:
+					return false;
+			}
+		}
+
+		private void quote(String s) throws IOException {
+			this.out.write('"');
+			for (int i = 0; i < s.length(); i++) {
+				char c = s.charAt(i);
+				switch (c) {
+					case '"':
+						this.out.write("\\\"");
+						break;
+					case '\\':
+						this.out.write("\\\\");
+						break;
+					case '\n':
+						this.out.write("\\n");
+						break;
+					case '\r':
+						this.out.write("\\r");
+						break;
+					case '\t':
+						this.out.write("\\t");
+						break;
+					default:
+						if (c < 0x20)
+							this.out.write(String.format("\\u%04x", (int) c));
+						else
+							this.out.write(c);
+				}
+			}
+			this.out.write('"');
+		}
+	}
+
+	/**
+	 * Pads every column of a block of rows to the widest value in the block.
+	 * Blocks are written when full and at the end of every page.
+	 */
+	static class TableSink extends Sink {
+		private final int _blockSize;
+		private final List<String[]> _block = new ArrayList<String[]>();
+
+		TableSink(Writer out, boolean closeOut, int blockSize) {
+			super(out, closeOut);
+			this._blockSize = blockSize;
+		}
+
+		void header() {
+		}
+
+		void values(String[] values) throws IOException {
+			this._block.add(values);
+			if (this._block.size() == this._blockSize)
+				writeBlock();
+		}
+
+		void endPage() throws IOException {
+			writeBlock();
+		}
+
+		private void writeBlock() throws IOException {
+			if (this._block.isEmpty())
+				return;
+			int[] widths = new int[this.names.length];
+			for (int i = 0; i < widths.length; i++)
+				widths[i] = this.names[i].length();
+			for (String[] values : this._block)
+				for (int i = 0; i < widths.length; i++)
+					widths[i] = Math.max(widths[i], values[i] == null ? 4 : values[i].length());
+
+			line(this.names, widths);
+			for (int i = 0; i < widths.length; i++) {
+				this.out.write(i == 0 ? "" : "-+-");
+				for (int j = 0; j < widths[i]; j++)
+					this.out.write('-');
+			}
+			this.out.write('\n');
+			for (String[] values : this._block)
+				line(values, widths);
+			this._block.clear();
+		}
+
+		private void line(String[] values, int[] widths) throws IOException {
+			for (int i = 0; i < values.length; i++) {
+				String v = values[i] == null ? "null" : values[i];
+				this.out.write(i == 0 ? "" : " | ");
+				this.out.write(v);
+				if (i + 1 < values.length)
+					for (int j = v.length(); j < widths[i]; j++)
+						this.out.write(' ');
+			}
+			this.out.write('\n');
+		}
+	}
+}
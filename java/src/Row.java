@@ -0,0 +1,98 @@
+import java.sql.Date;
+import java.sql.ResultSet;
+import java.sql.ResultSetMetaData;
+import java.sql.SQLException;
+import java.sql.Time;
+import java.sql.Timestamp;
+
+/**
+ * This class is a read-only view of the current row of a streamed query. Its
+ * typed accessors read the column values without turning them into strings.
+ * A Row is only valid inside the RowHandler call that received it.
+ *
+ */
+
+public class Row {
+	private final ResultSet _rs;
+	private ResultSetMetaData _meta = null;
+	// approximate size of the values read so far, for the query metrics
+	private long _bytes = 0;
+
+	Row(ResultSet rs) {
+		this._rs = rs;
+	}
+
+	public int columnCount() throws SQLException {
+		return meta().getColumnCount();
+	}
+
+	public String columnName(int column) throws SQLException {
+		return meta().getColumnName(column);
+	}
+
+	/**
+	 * @return the java.sql.Types code of the column
+	 */
+	public int columnType(int column) throws SQLException {
+		return meta().getColumnType(column);
+	}
+
+	public String getString(int column) throws SQLException {
+		String value = this._rs.getString(column);
+		if (value != null)
+			this._bytes += value.length();
+		return value;
+	}
+
+	public long getLong(int column) throws SQLException {
+		this._bytes += 8;
+		return this._rs.getLong(column);
+	}
+
+	public int getInt(int column) throws SQLException {
+		this._bytes += 4;
+		return this._rs.getInt(column);
+	}
+
+	public double getDouble(int column) throws SQLException {
+		this._bytes += 8;
+		return this._rs.getDouble(column);
+	}
+
+	public boolean getBoolean(int column) throws SQLException {
+		this._bytes += 1;
+		return this._rs.getBoolean(column);
+	}
+
+	public Date getDate(int column) throws SQLException {
+		this._bytes += 4;
+		return this._rs.getDate(column);
+	}
+
+	public Time getTime(int column) throws SQLException {
+		this._bytes += 8;
+		return this._rs.getTime(column);
+	}
+
+	public Timestamp getTimestamp(int column) throws SQLException {
+		this._bytes += 8;
+		return this._rs.getTimestamp(column);
+	}
+
+	/**
+	 * @return true when the column read last was SQL NULL
+	 */
+	public boolean wasNull() throws SQLException {
+		return this._rs.wasNull();
+	}
+
+	long bytes() {
+		return this._bytes;
+	}
+
+	private ResultSetMetaData meta() throws SQLException {
+		if (this._meta == null)
+			this._meta = this._rs.getMetaData();
+		return this._meta;
+	}
+}
@@ -0,0 +1,173 @@
+import java.sql.SQLException;
+
+/**
+ * This class brings the schema created by sql/create.sql up to date at
+ * startup. Migrations are numbered and applied in order, each in its own
+ * transaction, and recorded in schema_version so every one runs exactly once
+ * per database. An advisory lock keeps concurrently starting clients from
+ * applying the same migration twice.
+ *
+ */
+
+public class SchemaMigrator {
+	// arbitrary key for pg_advisory_xact_lock, shared by every client
+	private static final long LOCK_KEY = 166166L;
+
+	private static final Migration[] MIGRATIONS = {
+			new Migration(1, "indexes for the menu operations' hot filters",
+					"CREATE INDEX IF NOT EXISTS bookings_email_idx ON Bookings (email)",
+					"CREATE INDEX IF NOT EXISTS bookings_status_idx ON Bookings (status)",
+					"CREATE INDEX IF NOT EXISTS bookings_sid_idx ON Bookings (sid)",
+					"CREATE INDEX IF NOT EXISTS shows_mvid_sdate_idx ON Shows (mvid, sdate)",
+					"CREATE INDEX IF NOT EXISTS shows_sdate_sttime_idx ON Shows (sdate, sttime)",
+					"CREATE INDEX IF NOT EXISTS plays_tid_idx ON Plays (tid)",
+					"CREATE INDEX IF NOT EXISTS theaters_cid_idx ON Theaters (cid)",
+					"CREATE INDEX IF NOT EXISTS cinemas_cname_idx ON Cinemas (cname)",
+					"CREATE INDEX IF NOT EXISTS cinemaseats_tid_sno_idx ON CinemaSeats (tid, sno)",
+					"CREATE INDEX IF NOT EXISTS showseats_bid_idx ON ShowSeats (bid)",
+					"ANALYZE"),
+			new Migration(2, "change notifications for the reference data cache",
+					"CREATE OR REPLACE FUNCTION refdata_notify() RETURNS trigger AS $$ "
+							+ "BEGIN "
+							+ "IF TG_OP = 'TRUNCATE' THEN "
+							+ "PERFORM pg_notify('" + ReferenceDataCache.CHANNEL + "', lower(TG_TABLE_NAME) || ':TRUNCATE:'); "
+							+ "RETURN NULL; "
+							+ "END IF; "
+							+ "IF TG_OP <> 'INSERT' THEN "
+							+ "PERFORM pg_notify('" + ReferenceDataCache.CHANNEL + "', lower(TG_TABLE_NAME) || ':' || TG_OP || ':' || (to_jsonb(OLD) ->> TG_ARGV[0])); "
+							+ "END IF; "
+							+ "IF TG_OP <> 'DELETE' THEN "
+							+ "PERFORM pg_notify('" + ReferenceDataCache.CHANNEL + "', lower(TG_TABLE_NAME) || ':' || TG_OP || ':' || (to_jsonb(NEW) ->> TG_ARGV[0])); "
+							+ "END IF; "
+							+ "RETURN NULL; "
+							+ "END $$ LANGUAGE plpgsql",
+					"CREATE TRIGGER movies_refdata AFTER INSERT OR UPDATE OR DELETE ON Movies "
+							+ "FOR EACH ROW EXECUTE PROCEDURE refdata_notify('mvid')",
+					"CREATE TRIGGER cinemas_refdata AFTER INSERT OR UPDATE OR DELETE ON Cinemas "
+							+ "FOR EACH ROW EXECUTE PROCEDURE refdata_notify('cid')",
+					"CREATE TRIGGER theaters_refdata AFTER INSERT OR UPDATE OR DELETE ON Theaters "
+							+ "FOR EACH ROW EXECUTE PROCEDURE refdata_notify('tid')",
+					"CREATE TRIGGER cities_refdata AFTER INSERT OR UPDATE OR DELETE ON Cities "
+							+ "FOR EACH ROW EXECUTE PROCEDURE refdata_notify('city_id')",
+					"CREATE TRIGGER movies_refdata_truncate AFTER TRUNCATE ON Movies "
+							+ "FOR EACH STATEMENT EXECUTE PROCEDURE refdata_notify()",
+					"CREATE TRIGGER cinemas_refdata_truncate AFTER TRUNCATE ON Cinemas "
+							+ "FOR EACH STATEMENT EXECUTE PROCEDURE refdata_notify()",
+					"CREATE TRIGGER theaters_refdata_truncate AFTER TRUNCATE ON Theaters "
+							+ "FOR EACH STATEMENT EXECUTE PROCEDURE refdata_notify()",
+					"CREATE TRIGGER cities_refdata_truncate AFTER TRUNCATE ON Cities "
+							+ "FOR EACH STATEMENT EXECUTE PROCEDURE refdata_notify()"),
+			new Migration(3, "substring search on movie titles and release date ranges",
+					// without pg_trgm (contrib missing, or a role that may not create
+					// extensions) the title ILIKE still works, as a scan of Movies
+					"DO $$ BEGIN "
+							+ "CREATE EXTENSION IF NOT EXISTS pg_trgm; "
+							+ "CREATE INDEX IF NOT EXISTS movies_title_trgm_idx ON Movies USING gin (title gin_trgm_ops); "
+							+ "EXCEPTION WHEN insufficient_privilege OR undefined_file OR undefined_object "
+							+ "OR feature_not_supported THEN "
+							+ "RAISE WARNING 'pg_trgm is unavailable (%), title search will scan Movies', SQLERRM; "
+							+ "END $$",
+					"CREATE INDEX IF NOT EXISTS movies_rdate_idx ON Movies (rdate)",
+					"ANALYZE Movies"),
+			new Migration(4, "checkpoints of the bulk booking maintenance jobs",
+					"CREATE TABLE IF NOT EXISTS maintenance_jobs (job VARCHAR(64) PRIMARY KEY, "
+							+ "last_bid BIGINT NOT NULL, processed BIGINT NOT NULL, "
+							+ "started TIMESTAMPTZ NOT NULL DEFAULT now(), updated TIMESTAMPTZ NOT NULL DEFAULT now())"),
+			new Migration(5, "denormalized show schedule for the schedule listings",
+					"CREATE TABLE IF NOT EXISTS show_schedule (sid BIGINT NOT NULL, tid BIGINT NOT NULL, "
+							+ "cid BIGINT NOT NULL, cname VARCHAR(64) NOT NULL, tname VARCHAR(64) NOT NULL, "
+							+ "mvid BIGINT NOT NULL, title VARCHAR(128) NOT NULL, duration INTEGER, sdate DATE NOT NULL, "
+							+ "sttime TIME NOT NULL, edtime TIME NOT NULL, PRIMARY KEY (sid, tid))",
+					"CREATE INDEX IF NOT EXISTS show_schedule_cinema_idx ON show_schedule (cname, sdate, sttime, mvid)",
+					"CREATE INDEX IF NOT EXISTS show_schedule_start_idx ON show_schedule (sdate, sttime)",
+					"INSERT INTO show_schedule (" + ShowSchedule.COLUMNS + ") " + ShowSchedule.SELECT
+							+ " ON CONFLICT (sid, tid) DO NOTHING",
+					"ANALYZE show_schedule"),
+			new Migration(6, "booking status codes with partial indexes on pending and cancelled bookings",
+					"UPDATE Bookings SET status = initcap(status) "
+							+ "WHERE lower(status) IN ('pending', 'paid', 'cancelled') AND status <> initcap(status)",
+					// kept by a trigger rather than GENERATED ... STORED, which needs PostgreSQL 12
+					"ALTER TABLE Bookings ADD COLUMN IF NOT EXISTS status_code SMALLINT",
+					"CREATE OR REPLACE FUNCTION bookings_status_code() RETURNS trigger AS $$ "
+							+ "BEGIN "
+							+ "NEW.status_code := " + BookingStatus.codeSql("NEW.status") + "; "
+							+ "RETURN NEW; "
+							+ "END $$ LANGUAGE plpgsql",
+					"DROP TRIGGER IF EXISTS bookings_status_code ON Bookings",
+					"CREATE TRIGGER bookings_status_code BEFORE INSERT OR UPDATE ON Bookings "
+							+ "FOR EACH ROW EXECUTE PROCEDURE bookings_status_code()",
+					"UPDATE Bookings SET status_code = " + BookingStatus.codeSql("status"),
+					"ALTER TABLE Bookings ADD CONSTRAINT bookings_status_known CHECK (status_code IS NOT NULL)",
+					"DROP INDEX IF EXISTS bookings_status_idx",
+					"CREATE INDEX IF NOT EXISTS bookings_pending_bid_idx ON Bookings (bid) WHERE status_code = 0",
+					"CREATE INDEX IF NOT EXISTS bookings_pending_email_idx ON Bookings (email) WHERE status_code = 0",
+					"CREATE INDEX IF NOT EXISTS bookings_cancelled_bid_idx ON Bookings (bid) WHERE status_code = 2",
+					"ANALYZE Bookings"),
+			new Migration(7, "idempotency keys of the payment cancellation pipeline",
+					"CREATE TABLE IF NOT EXISTS payment_cancellations (idem_key VARCHAR(64) PRIMARY KEY, "
+							+ "bid BIGINT NOT NULL, refunded REAL, processed TIMESTAMPTZ NOT NULL DEFAULT now())",
+					"CREATE INDEX IF NOT EXISTS payment_cancellations_bid_idx ON payment_cancellations (bid)"),
+			new Migration(8, "short-lived holds on the seats of a booking in progress",
+					"CREATE TABLE IF NOT EXISTS seat_holds (sid BIGINT NOT NULL REFERENCES shows (sid) ON DELETE CASCADE, "
+							+ "csid BIGINT NOT NULL REFERENCES cinemaseats (csid), holder VARCHAR(64) NOT NULL, "
+							+ "expires TIMESTAMPTZ NOT NULL, PRIMARY KEY (sid, csid))",
+					"CREATE INDEX IF NOT EXISTS seat_holds_expires_idx ON seat_holds (expires)"),
+			new Migration(9, "seat uniqueness checked per statement, so one exchange can swap or shift seats",
+					"ALTER TABLE ShowSeats DROP CONSTRAINT IF EXISTS showseats_sid_csid_key",
+					"ALTER TABLE ShowSeats ADD CONSTRAINT showseats_sid_csid_key UNIQUE (sid, csid) "
+							+ "DEFERRABLE INITIALLY IMMEDIATE") };
+
+	private final Ticketmaster _esql;
+
+	public SchemaMigrator(Ticketmaster esql) {
+		this._esql = esql;
+	}
+
+	/**
+	 * A numbered list of DDL statements applied together.
+	 */
+	static class Migration {
+		final int version;
+		final String description;
+		final String[] statements;
+
+		Migration(int version, String description, String... statements) {
+			this.version = version;
+			this.description = description;
+			this.statements = statements;
+		}
+	}
+
+	/**
+	 * Method to apply every migration the database has not seen yet.
+	 *
+	 * @return the number of migrations applied
+	 * @throws java.sql.SQLException when a migration failed; it is rolled back
+	 */
+	public int migrate() throws SQLException {
+		this._esql.executeUpdate("CREATE TABLE IF NOT EXISTS schema_version ("
+				+ "version INTEGER NOT NULL, description VARCHAR(128) NOT NULL, "
+				+ "applied TIMESTAMPTZ NOT NULL DEFAULT now(), PRIMARY KEY(version));");
+
+		int applied = 0;
+		for (final Migration migration : MIGRATIONS) {
+			boolean ran = this._esql.inTransaction(new Ticketmaster.Transaction<Boolean>() {
+				public Boolean run() throws SQLException {
+					_esql.executeQuery("select pg_advisory_xact_lock(?);", LOCK_KEY);
+					if (_esql.executeQuery("select version from schema_version where version = ?;", migration.version) > 0)
+						return false;
+					for (String statement : migration.statements)
+						_esql.executeUpdate(statement);
+					_esql.executeUpdate("insert into schema_version (version, description) values (?, ?);",
+							migration.version, migration.description);
+					return true;
+				}
+			});
+			if (ran) {
+				System.out.println("Applied schema migration " + migration.version + ": " + migration.description);
+				applied++;
+			}
+		}
+		return applied;
+	}
+}
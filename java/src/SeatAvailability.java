@@ -0,0 +1,179 @@
+import java.sql.SQLException;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * This class keeps an in-memory seat map per show: one bitmap over the seat
+ * numbers of the show's theater with a bit set for every seat that is still
+ * free. A map is built lazily from CinemaSeats and ShowSeats with one query,
+ * updated in place by the reservation paths after they commit, and rebuilt when
+ * it is invalidated or older than -Dseats.maxAgeMillis (to pick up writes made
+ * by other processes).
+ *
+ */
+
+public class SeatAvailability {
+	private static final String LOAD_SHOW = "select p.tid, cs.sno, cs.stype, ss.ssid is null "
+			+ "from plays p join cinemaseats cs on cs.tid = p.tid "
+			+ "left join showseats ss on ss.sid = p.sid and ss.csid = cs.csid "
+			+ "where p.sid = ? and p.tid = (select min(tid) from plays where sid = ?);";
+
+	private final Ticketmaster _esql;
+	private final long _maxAgeMillis;
+	private final ConcurrentHashMap<Long, ShowSeats> _shows = new ConcurrentHashMap<Long, ShowSeats>();
+
+	public SeatAvailability(Ticketmaster esql) {
+		this._esql = esql;
+		this._maxAgeMillis = Long.getLong("seats.maxAgeMillis", 30000L);
+	}
+
+	/**
+	 * Seat map of one show. Seat numbers index the bitmaps directly.
+	 */
+	public static class ShowSeats {
+		private final long _tid;
+		private final long _loadedAt = System.currentTimeMillis();
+		private final BitSet _exists = new BitSet();
+		private final BitSet _free = new BitSet();
+		private String[] _types = new String[0];
+
+		ShowSeats(long tid) {
+			this._tid = tid;
+		}
+
+		public long tid() {
+			return this._tid;
+		}
+
+		public synchronized boolean exists(int sno) {
+			return sno >= 0 && this._exists.get(sno);
+		}
+
+		public synchronized boolean isFree(int sno) {
+			return sno >= 0 && this._free.get(sno);
+		}
+
+		public synchronized String type(int sno) {
+			return exists(sno) ? this._types[sno] : null;
+		}
+
+		public synchronized int freeCount() {
+			return this._free.cardinality();
+		}
+
+		/**
+		 * @return the free seat numbers in ascending order
+		 */
+		public synchronized int[] free() {
+			return this._free.stream().toArray();
+		}
+
+		synchronized void add(int sno, String stype, boolean free) {
+			if (sno >= this._types.length)
+				this._types = Arrays.copyOf(this._types, Math.max(sno + 1, this._types.length * 2));
+			this._types[sno] = stype.intern();
+			this._exists.set(sno);
+			this._free.set(sno, free);
+		}
+
+		synchronized void take(int[] snos) {
+			for (int sno : snos)
+				if (sno >= 0)
+					this._free.clear(sno);
+		}
+
+		synchronized void release(int[] snos) {
+			for (int sno : snos)
+				if (exists(sno))
+					this._free.set(sno);
+		}
+	}
+
+	/**
+	 * Method to get the seat map of a show, loading it on first use or when the
+	 * cached copy has expired.
+	 *
+	 * @param sid the show id
+	 * @return the seat map, or null when the show is not playing in any theater
+	 * @throws java.sql.SQLException when the seat map could not be loaded
+	 */
+	public ShowSeats show(long sid) throws SQLException {
+		ShowSeats seats = this._shows.get(sid);
+		if (seats != null && System.currentTimeMillis() - seats._loadedAt <= this._maxAgeMillis)
+			return seats;
+
+		List<List<String>> rows = this._esql.executeQueryAndReturnResult(LOAD_SHOW, sid, sid);
+		if (rows.isEmpty()) {
+			this._shows.remove(sid);
+			return null;
+		}
+		seats = new ShowSeats(Long.parseLong(rows.get(0).get(0)));
+		for (List<String> row : rows)
+			seats.add(Integer.parseInt(row.get(1)), row.get(2), "t".equals(row.get(3)));
+		this._shows.put(sid, seats);
+		return seats;
+	}
+
+	/**
+	 * Method to mark seats as booked after a reservation committed.
+	 */
+	public void taken(long sid, int[] snos) {
+		ShowSeats seats = this._shows.get(sid);
+		if (seats != null)
+			seats.take(snos);
+	}
+
+	/**
+	 * Method to mark seats as free again after their booking released them.
+	 */
+	public void released(long sid, int[] snos) {
+		ShowSeats seats = this._shows.get(sid);
+		if (seats != null)
+			seats.release(snos);
+	}
+
+	/**
+	 * Method to drop the seat map of a show, for example when a reservation ran
+	 * into a seat the map still listed as free.
+	 */
+	public void invalidate(long sid) {
+		this._shows.remove(sid);
+	}
+
+	public void invalidateAll() {
+		this._shows.clear();
+	}
+
+	/**
+	 * Method to print the free seats of a show in the same layout as
+	 * executeQueryAndPrintResult.
+	 *
+	 * @param sid       the show id
+	 * @param withTypes also print the seat type column
+	 * @return the number of free seats printed
+	 * @throws java.sql.SQLException when the seat map could not be loaded
+	 */
+	public int printFree(long sid, boolean withTypes) throws SQLException {
+		ShowSeats seats = show(sid);
+		if (seats == null)
+			return 0;
+		return print(seats, seats.free(), withTypes);
+	}
+
+	// prints the given seat numbers of a show's seat map
+	static int print(ShowSeats seats, int[] free, boolean withTypes) {
+		StringBuilder out = new StringBuilder();
+		if (free.length > 0)
+			out.append(withTypes ? "sno\tstype\t\n" : "sno\t\n");
+		for (int sno : free) {
+			out.append(sno).append('\t');
+			if (withTypes)
+				out.append(seats.type(sno)).append('\t');
+			out.append('\n');
+		}
+		System.out.print(out);
+		return free.length;
+	}
+}
@@ -0,0 +1,137 @@
+import java.sql.SQLException;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * This class moves some seats of a booking to other seats of the same type in
+ * the same show. The whole old-to-new mapping is checked with one query and
+ * applied with one batched update inside a single transaction that first locks
+ * the booking and its ShowSeats rows, so the cost does not grow with the number
+ * of seats and concurrent exchanges of one booking run one after the other. Two
+ * bookings moving into the same free seat are kept apart by the UNIQUE(sid,
+ * csid) constraint on ShowSeats; the loser gets a SeatUnavailableException and
+ * nothing is changed. A seat may move onto a seat the same call gives up, as in
+ * a swap (5:6,6:5) or a shift (5:6,6:7): the constraint is deferrable (checked
+ * at the end of the update, not row by row) since migration 9.
+ *
+ */
+
+public class SeatExchange {
+	private static final String UNIQUE_VIOLATION = "23505";
+
+	private static final String LOCK_BOOKING = "select b.sid, b.email, (select min(p.tid) from plays p where p.sid = b.sid) "
+			+ "from bookings b where b.bid = ? for update;";
+
+	private static final String LOCK_SEATS = "select ssid from showseats where bid = ? for update;";
+
+	// one row per requested move, in request order: the seat being left, the
+	// seat asked for, and whoever holds that seat now
+	private static final String RESOLVE = "select v.old_sno, v.new_sno, os.ssid, ocs.stype, n.csid, n.stype, t.bid, t.ssid "
+			+ "from unnest(?::int[], ?::int[]) with ordinality as v(old_sno, new_sno, i) "
+			+ "left join (showseats os join cinemaseats ocs on ocs.csid = os.csid) on os.bid = ? and ocs.sno = v.old_sno "
+			+ "left join cinemaseats n on n.tid = ? and n.sno = v.new_sno "
+			+ "left join showseats t on t.sid = ? and t.csid = n.csid order by v.i;";
+
+	// seats with a live hold are someone else's, as an exchange holds nothing itself
+	private static final String MOVE = "update showseats ss set csid = v.csid "
+			+ "from unnest(?::bigint[], ?::bigint[]) as v(ssid, csid) where ss.ssid = v.ssid and ss.bid = ? "
+			+ "and not exists (select 1 from seat_holds h where h.sid = ss.sid and h.csid = v.csid and h.expires > now());";
+
+	private final Ticketmaster _esql;
+
+	public SeatExchange(Ticketmaster esql) {
+		this._esql = esql;
+	}
+
+	/**
+	 * Method to move seats of a booking, all of them or none.
+	 *
+	 * @param bid      the booking
+	 * @param oldSnos  seat numbers the booking holds now
+	 * @param newSnos  the seat number to move to, for each entry of oldSnos
+	 * @return the number of seats moved
+	 * @throws ReservationEngine.SeatUnavailableException when a requested seat
+	 *                                                    is taken
+	 * @throws java.sql.SQLException                      when the exchange failed
+	 */
+	public int exchange(final long bid, final int[] oldSnos, final int[] newSnos) throws SQLException {
+		if (oldSnos.length != newSnos.length)
+			throw new IllegalArgumentException("every seat needs exactly one replacement");
+		if (oldSnos.length == 0)
+			throw new IllegalArgumentException("no seats to exchange");
+		final Set<Integer> olds = new HashSet<Integer>();
+		Set<Integer> news = new HashSet<Integer>();
+		final Integer[] boxedOld = new Integer[oldSnos.length];
+		final Integer[] boxedNew = new Integer[newSnos.length];
+		for (int i = 0; i < oldSnos.length; i++) {
+			if (!olds.add(oldSnos[i]))
+				throw new IllegalArgumentException("seat " + oldSnos[i] + " is listed twice");
+			if (!news.add(newSnos[i]))
+				throw new IllegalArgumentException("seat " + newSnos[i] + " is requested twice");
+			boxedOld[i] = oldSnos[i];
+			boxedNew[i] = newSnos[i];
+		}
+
+		final String[] booking = new String[2];
+		try {
+			this._esql.inTransaction(new Ticketmaster.Transaction<Integer>() {
+				public Integer run() throws SQLException {
+					List<List<String>> found = _esql.executeQueryAndReturnResult(LOCK_BOOKING, bid);
+					if (found.isEmpty())
+						throw new IllegalArgumentException("unknown booking " + bid);
+					String sid = found.get(0).get(0);
+					String tid = found.get(0).get(2);
+					if (tid == null)
+						throw new IllegalArgumentException("the show of booking " + bid + " is not playing anywhere");
+					booking[0] = sid;
+					booking[1] = found.get(0).get(1);
+					_esql.executeQuery(LOCK_SEATS, bid);
+
+					List<List<String>> moves = _esql.executeQueryAndReturnResult(RESOLVE,
+							_esql.createArray("int4", boxedOld), _esql.createArray("int4", boxedNew), bid, tid, sid);
+					Long[] ssids = new Long[moves.size()];
+					Long[] csids = new Long[moves.size()];
+					for (int i = 0; i < moves.size(); i++) {
+						List<String> move = moves.get(i);
+						String oldSno = move.get(0), newSno = move.get(1);
+						if (move.get(2) == null)
+							throw new IllegalArgumentException("seat " + oldSno + " is not part of booking " + bid);
+						if (move.get(4) == null)
+							throw new IllegalArgumentException("no seat " + newSno + " in theater " + tid);
+						if (!move.get(3).equals(move.get(5)))
+							throw new IllegalArgumentException("seat " + newSno + " is not the same type as seat " + oldSno);
+						boolean ours = move.get(7) != null && String.valueOf(bid).equals(move.get(6));
+						// a seat of this booking is only free to move to if this call gives it up
+						if (ours && !olds.contains(Integer.valueOf(newSno)))
+							throw new IllegalArgumentException("seat " + newSno + " is already part of booking " + bid);
+						if (move.get(7) != null && !ours)
+							throw new ReservationEngine.SeatUnavailableException("seat " + newSno + " is already booked.", null);
+						ssids[i] = Long.parseLong(move.get(2));
+						csids[i] = Long.parseLong(move.get(4));
+					}
+					int moved = _esql.executeUpdate(MOVE, _esql.createArray("int8", ssids), _esql.createArray("int8", csids),
+							bid);
+					if (moved != ssids.length)
+						throw new ReservationEngine.SeatUnavailableException(
+								"one of the requested seats is held by someone else.", null);
+					return moved;
+				}
+			});
+		} catch (ReservationEngine.SeatUnavailableException e) {
+			this._esql.seats().invalidate(Long.parseLong(booking[0]));
+			throw e;
+		} catch (SQLException e) {
+			if (!UNIQUE_VIOLATION.equals(e.getSQLState()))
+				throw e;
+			// someone booked one of the seats after we resolved it
+			this._esql.seats().invalidate(Long.parseLong(booking[0]));
+			throw new ReservationEngine.SeatUnavailableException("one of the requested seats is already booked.", e);
+		}
+		long sid = Long.parseLong(booking[0]);
+		this._esql.seats().released(sid, oldSnos);
+		this._esql.seats().taken(sid, newSnos);
+		this._esql.itinerary().invalidate(booking[1]);
+		return oldSnos.length;
+	}
+}
@@ -0,0 +1,343 @@
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * This class places short-lived holds on the seats a user picks while booking
+ * interactively, so two sessions cannot pick the same seat between listing the
+ * free seats and booking them. Holds live in memory, striped by show over
+ * -Dholds.stripes locks so sessions on different shows never wait for each
+ * other, and are mirrored to the seat_holds table with their expiry, where one
+ * upsert per hold also keeps out holds made by other processes and seats booked
+ * meanwhile. No row of Shows or ShowSeats is locked while a user is choosing.
+ * Reservations and seat exchanges, in any process, skip seats with someone
+ * else's live hold in SQL inside their own transaction.
+ *
+ * A hold lasts -Dholds.ttlMillis. checkout() turns the holds of a holder into a
+ * booking, deleting them in the booking's own transaction; a reaper thread
+ * drops expired holds every -Dholds.reapMillis, so abandoned selections free
+ * their seats without anyone releasing them.
+ *
+ */
+
+public class SeatHolds {
+	// places or refreshes a hold unless another holder's unexpired hold or a booking has the seat
+	private static final String HOLD = "insert into seat_holds (sid, csid, holder, expires) "
+			+ "select ?, cs.csid, ?, now() + ? * interval '1 millisecond' from cinemaseats cs "
+			+ "where cs.sno = ? and cs.tid = (select min(tid) from plays where sid = ?) "
+			+ "and not exists (select 1 from showseats ss where ss.sid = ? and ss.csid = cs.csid) "
+			+ "on conflict (sid, csid) do update set holder = excluded.holder, expires = excluded.expires "
+			+ "where seat_holds.holder = excluded.holder or seat_holds.expires <= now();";
+
+	private static final String CONVERT = "delete from seat_holds h using cinemaseats cs "
+			+ "where h.sid = ? and h.holder = ? and h.expires > now() and cs.csid = h.csid and cs.sno = any(?::int[]);";
+
+	private static final String HELD_BY_OTHERS = "select count(*) from seat_holds h join cinemaseats cs on cs.csid = h.csid "
+			+ "where h.sid = ? and cs.sno = any(?::int[]) and h.expires > now() and h.holder <> ?;";
+
+	private static final String RELEASE = "delete from seat_holds where sid = ? and holder = ?;";
+
+	private static final String REAP = "delete from seat_holds where expires <= now();";
+
+	private static class Hold {
+		final String holder;
+		final long expiresAt;
+
+		Hold(String holder, long expiresAt) {
+			this.holder = holder;
+			this.expiresAt = expiresAt;
+		}
+
+		boolean live(long now) {
+			return this.expiresAt > now;
+		}
+	}
+
+	/**
+	 * The holds of the shows that hash to one stripe, by show and seat number.
+	 */
+	private static class Stripe {
+		private final Map<Long, Map<Integer, Hold>> _shows = new HashMap<Long, Map<Integer, Hold>>();
+
+		synchronized boolean place(long sid, int sno, String holder, long expiresAt) {
+			Map<Integer, Hold> seats = this._shows.get(sid);
+			if (seats == null)
+				this._shows.put(sid, seats = new HashMap<Integer, Hold>());
+			Hold hold = seats.get(sno);
+			if (hold != null && hold.live(System.currentTimeMillis()) && !hold.holder.equals(holder))
+				return false;
+			seats.put(sno, new Hold(holder, expiresAt));
+			return true;
+		}
+
+		synchronized void remove(long sid, int sno, String holder) {
+			Map<Integer, Hold> seats = this._shows.get(sid);
+			if (seats == null)
+				return;
+			Hold hold = seats.get(sno);
+			if (hold != null && hold.holder.equals(holder))
+				seats.remove(sno);
+			if (seats.isEmpty())
+				this._shows.remove(sid);
+		}
+
+		synchronized int removeAll(long sid, String holder) {
+			Map<Integer, Hold> seats = this._shows.get(sid);
+			if (seats == null)
+				return 0;
+			int removed = 0;
+			for (Iterator<Hold> it = seats.values().iterator(); it.hasNext();) {
+				if (it.next().holder.equals(holder)) {
+					it.remove();
+					removed++;
+				}
+			}
+			if (seats.isEmpty())
+				this._shows.remove(sid);
+			return removed;
+		}
+
+		// the seats of the show with a live hold, of the holder or of everyone else
+		synchronized List<Integer> held(long sid, String holder, boolean own) {
+			List<Integer> snos = new ArrayList<Integer>();
+			Map<Integer, Hold> seats = this._shows.get(sid);
+			if (seats == null)
+				return snos;
+			long now = System.currentTimeMillis();
+			for (Map.Entry<Integer, Hold> seat : seats.entrySet())
+				if (seat.getValue().live(now) && seat.getValue().holder.equals(holder) == own)
+					snos.add(seat.getKey());
+			return snos;
+		}
+
+		synchronized int reap(long now) {
+			int reaped = 0;
+			for (Iterator<Map<Integer, Hold>> shows = this._shows.values().iterator(); shows.hasNext();) {
+				Map<Integer, Hold> seats = shows.next();
+				for (Iterator<Hold> it = seats.values().iterator(); it.hasNext();) {
+					if (!it.next().live(now)) {
+						it.remove();
+						reaped++;
+					}
+				}
+				if (seats.isEmpty())
+					shows.remove();
+			}
+			return reaped;
+		}
+
+		synchronized void clear() {
+			this._shows.clear();
+		}
+
+		synchronized int size() {
+			int n = 0;
+			for (Map<Integer, Hold> seats : this._shows.values())
+				n += seats.size();
+			return n;
+		}
+	}
+
+	private final Ticketmaster _esql;
+	private final long _ttlMillis;
+	private final long _reapMillis;
+	private final Stripe[] _stripes;
+	private Thread _reaper = null;
+	private volatile boolean _closed = false;
+
+	public SeatHolds(Ticketmaster esql) {
+		this._esql = esql;
+		this._ttlMillis = Long.getLong("holds.ttlMillis", 300000L);
+		this._reapMillis = Long.getLong("holds.reapMillis", 5000L);
+		// a power of two, so a show picks its stripe with a mask
+		int stripes = Integer.highestOneBit(Math.max(1, Integer.getInteger("holds.stripes", 64)));
+		this._stripes = new Stripe[stripes];
+		for (int i = 0; i < stripes; i++)
+			this._stripes[i] = new Stripe();
+	}
+
+	private Stripe stripe(long sid) {
+		long h = sid * 0x9E3779B97F4A7C15L;
+		return this._stripes[(int) (h ^ (h >>> 32)) & (this._stripes.length - 1)];
+	}
+
+	/**
+	 * Method to hold a seat of a show for a holder, or to refresh the holder's
+	 * hold on it.
+	 *
+	 * @param holder identifies one booking in progress
+	 * @param sid    the show id
+	 * @param sno    the seat number in the show's theater
+	 * @return false when the seat does not exist, is booked or is held by
+	 *         someone else
+	 * @throws java.sql.SQLException when the hold could not be stored
+	 */
+	public boolean hold(String holder, long sid, int sno) throws SQLException {
+		SeatAvailability.ShowSeats seats = this._esql.seats().show(sid);
+		if (seats == null || !seats.isFree(sno))
+			return false;
+		Stripe stripe = stripe(sid);
+		if (!stripe.place(sid, sno, holder, System.currentTimeMillis() + this._ttlMillis))
+			return false;
+		boolean placed = false;
+		try {
+			placed = this._esql.executeUpdate(HOLD, sid, holder, this._ttlMillis, sno, sid, sid) == 1;
+		} finally {
+			if (!placed)
+				stripe.remove(sid, sno, holder);
+		}
+		startReaper();
+		return placed;
+	}
+
+	/**
+	 * @return the seat numbers of the show the holder still holds, in order
+	 */
+	public int[] held(String holder, long sid) {
+		return sorted(stripe(sid).held(sid, holder, true));
+	}
+
+	/**
+	 * Method to print the seats of a show that are free and not held, the
+	 * holder's own picks included, in the layout of SeatAvailability.printFree.
+	 *
+	 * @param sid    the show id
+	 * @param holder the holder asking
+	 * @return the number of seats printed
+	 * @throws java.sql.SQLException when the seat map could not be loaded
+	 */
+	public int printAvailable(long sid, String holder) throws SQLException {
+		SeatAvailability.ShowSeats seats = this._esql.seats().show(sid);
+		if (seats == null)
+			return 0;
+		List<Integer> others = stripe(sid).held(sid, holder, false);
+		List<Integer> own = stripe(sid).held(sid, holder, true);
+		List<Integer> available = new ArrayList<Integer>();
+		for (int sno : seats.free())
+			if (!others.contains(sno) && !own.contains(sno))
+				available.add(sno);
+		return SeatAvailability.print(seats, sorted(available), false);
+	}
+
+	/**
+	 * Method to book the seats a holder picked on a show as one paid booking.
+	 * The holds are deleted in the booking's transaction. Nothing is booked
+	 * unless every picked seat is still held.
+	 *
+	 * @param holder the holder
+	 * @param email  account making the booking
+	 * @param sid    the show id
+	 * @param snos   the seat numbers the holder picked
+	 * @return the new booking id
+	 * @throws ReservationEngine.SeatUnavailableException when the hold on a
+	 *                                                    picked seat expired
+	 * @throws java.sql.SQLException                      when the booking failed
+	 */
+	public long checkout(String holder, String email, long sid, int[] snos) throws SQLException {
+		if (snos.length == 0)
+			throw new IllegalArgumentException("no seats are held");
+		List<Integer> held = stripe(sid).held(sid, holder, true);
+		for (int sno : snos)
+			if (!held.contains(sno))
+				throw new ReservationEngine.SeatUnavailableException("your hold on seat " + sno + " has expired.", null);
+		long bid = this._esql.reservations().reserve(email, sid, snos, BookingStatus.PAID, holder);
+		stripe(sid).removeAll(sid, holder);
+		return bid;
+	}
+
+	// deletes the holder's live holds on the seats inside a reservation's transaction
+	int convert(long sid, String holder, Integer[] snos) throws SQLException {
+		return this._esql.executeUpdate(CONVERT, sid, holder, this._esql.createArray("int4", snos));
+	}
+
+	// tells a reservation that left out seats whether a live hold of someone else was the reason
+	boolean heldByOthers(long sid, Integer[] snos, String holder) throws SQLException {
+		return !"0".equals(this._esql.executeQueryAndReturnResult(HELD_BY_OTHERS, sid,
+				this._esql.createArray("int4", snos), holder).get(0).get(0));
+	}
+
+	/**
+	 * Method to drop every hold of a holder on a show.
+	 *
+	 * @throws java.sql.SQLException when the stored holds could not be deleted
+	 */
+	public void release(String holder, long sid) throws SQLException {
+		if (stripe(sid).removeAll(sid, holder) > 0)
+			this._esql.executeUpdate(RELEASE, sid, holder);
+	}
+
+	/**
+	 * Method to forget every hold in memory, for example after a bulk load
+	 * emptied seat_holds.
+	 */
+	public void invalidateAll() {
+		for (Stripe stripe : this._stripes)
+			stripe.clear();
+	}
+
+	/**
+	 * @return the number of holds in memory, expired ones not yet reaped included
+	 */
+	public int count() {
+		int n = 0;
+		for (Stripe stripe : this._stripes)
+			n += stripe.size();
+		return n;
+	}
+
+	/**
+	 * Method to drop the expired holds from memory and from seat_holds.
+	 *
+	 * @return the number of stored holds deleted
+	 * @throws java.sql.SQLException when the stored holds could not be deleted
+	 */
+	public int reap() throws SQLException {
+		long now = System.currentTimeMillis();
+		for (Stripe stripe : this._stripes)
+			stripe.reap(now);
+		return this._esql.executeUpdate(REAP);
+	}
+
+	private static int[] sorted(List<Integer> snos) {
+		int[] sorted = new int[snos.size()];
+		for (int i = 0; i < sorted.length; i++)
+			sorted[i] = snos.get(i);
+		Arrays.sort(sorted);
+		return sorted;
+	}
+
+	private synchronized void startReaper() {
+		if (this._reaper != null || this._closed)
+			return;
+		this._reaper = new Thread(new Runnable() {
+			public void run() {
+				_esql.setOperation("AddBooking");
+				while (!_closed) {
+					try {
+						Thread.sleep(_reapMillis);
+						reap();
+					} catch (InterruptedException e) {
+						return;
+					} catch (SQLException e) {
+						System.err.println("Reaping seat holds failed: " + e.getMessage());
+					}
+				}
+			}
+		}, "seat-holds-reaper");
+		this._reaper.setDaemon(true);
+		this._reaper.start();
+	}
+
+	/**
+	 * Method to stop the reaper. Holds left in seat_holds expire on their own.
+	 */
+	public synchronized void close() {
+		this._closed = true;
+		if (this._reaper != null)
+			this._reaper.interrupt();
+	}
+}
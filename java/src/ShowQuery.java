@@ -0,0 +1,174 @@
+import java.util.ArrayList;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * This class builds flat join queries over the show graph
+ *
+ * <pre>
+ * Bookings b -- Shows s -- Movies m
+ *                  |
+ *               Plays p -- Theaters t -- Cinemas c -- Cities ci
+ * </pre>
+ *
+ * instead of nested IN-subquery chains. Only the tables that a selected column
+ * or a filter refers to are joined, and filter values are bound as parameters.
+ * Columns are written with the aliases above, such as "m.title".
+ *
+ */
+
+public class ShowQuery {
+	private final List<String> _columns = new ArrayList<String>();
+	private final List<String> _conditions = new ArrayList<String>();
+	private final List<Object> _params = new ArrayList<Object>();
+	private final Set<String> _aliases = new LinkedHashSet<String>();
+	private boolean _distinct = false;
+	private String _orderBy = null;
+
+	/**
+	 * Method to add result columns.
+	 *
+	 * @param columns qualified column names, such as "s.sdate"
+	 */
+	public ShowQuery select(String... columns) {
+		for (String column : columns) {
+			use(column);
+			this._columns.add(column);
+		}
+		return this;
+	}
+
+	public ShowQuery distinct() {
+		this._distinct = true;
+		return this;
+	}
+
+	public ShowQuery orderBy(String columns) {
+		for (String column : columns.split(","))
+			use(column.trim().split("\\s+")[0]);
+		this._orderBy = columns;
+		return this;
+	}
+
+	public ShowQuery sid(long sid) {
+		return where("s.sid = ?", sid);
+	}
+
+	public ShowQuery mvid(long mvid) {
+		return where("s.mvid = ?", mvid);
+	}
+
+	public ShowQuery movieTitle(String title) {
+		return where("m.title = ?", title);
+	}
+
+	public ShowQuery onDate(String date) {
+		return where("s.sdate = ?", date);
+	}
+
+	public ShowQuery dateBetween(String from, String to) {
+		return where("s.sdate between ? and ?", from, to);
+	}
+
+	public ShowQuery startTime(String time) {
+		return where("s.sttime = ?", time);
+	}
+
+	public ShowQuery theaterName(String tname) {
+		return where("t.tname = ?", tname);
+	}
+
+	public ShowQuery cinemaName(String cname) {
+		return where("c.cname = ?", cname);
+	}
+
+	public ShowQuery userEmail(String email) {
+		return where("b.email = ?", email);
+	}
+
+	/**
+	 * Method to add a filter on any column of the graph.
+	 *
+	 * @param condition a predicate over qualified columns with '?' placeholders
+	 * @param values    values for the placeholders
+	 */
+	public ShowQuery where(String condition, Object... values) {
+		use(condition.trim().split("[\\s=<>]+")[0]);
+		this._conditions.add(condition);
+		for (Object value : values)
+			this._params.add(value);
+		return this;
+	}
+
+	/**
+	 * @return the SELECT statement for the selected columns
+	 */
+	public String sql() {
+		if (this._columns.isEmpty())
+			throw new IllegalStateException("no columns selected");
+		StringBuilder sql = new StringBuilder("select ");
+		if (this._distinct)
+			sql.append("distinct ");
+		sql.append(String.join(", ", this._columns));
+		appendBody(sql);
+		if (this._orderBy != null)
+			sql.append(" order by ").append(this._orderBy);
+		return sql.append(';').toString();
+	}
+
+	/**
+	 * @return a SELECT of the distinct matching show ids, without a trailing
+	 *         semicolon, for use in a CTE or an IN list
+	 */
+	public String sidSet() {
+		StringBuilder sql = new StringBuilder("select distinct s.sid");
+		appendBody(sql);
+		return sql.toString();
+	}
+
+	/**
+	 * @return the values for the placeholders of sql() and sidSet(), in order
+	 */
+	public Object[] params() {
+		return this._params.toArray();
+	}
+
+	private void appendBody(StringBuilder sql) {
+		sql.append(" from shows s");
+		if (this._aliases.contains("b"))
+			sql.append(" join bookings b on b.sid = s.sid");
+		if (this._aliases.contains("m"))
+			sql.append(" join movies m on m.mvid = s.mvid");
+		if (this._aliases.contains("p"))
+			sql.append(" join plays p on p.sid = s.sid");
+		if (this._aliases.contains("t"))
+			sql.append(" join theaters t on t.tid = p.tid");
+		if (this._aliases.contains("c"))
+			sql.append(" join cinemas c on c.cid = t.cid");
+		if (this._aliases.contains("ci"))
+			sql.append(" join cities ci on ci.city_id = c.city_id");
+		if (!this._conditions.isEmpty())
+			sql.append(" where ").append(String.join(" and ", this._conditions));
+	}
+
+	// records the table behind a qualified column and every table on its join path
+	private void use(String column) {
+		int dot = column.indexOf('.');
+		if (dot < 0)
+			throw new IllegalArgumentException("column must be qualified with a table alias: " + column);
+		String alias = column.substring(0, dot);
+		if (alias.equals("ci"))
+			this._aliases.add("ci");
+		if (alias.equals("ci") || alias.equals("c"))
+			this._aliases.add("c");
+		if (alias.equals("ci") || alias.equals("c") || alias.equals("t"))
+			this._aliases.add("t");
+		if (alias.equals("ci") || alias.equals("c") || alias.equals("t") || alias.equals("p"))
+			this._aliases.add("p");
+		else if (alias.equals("m") || alias.equals("b"))
+			this._aliases.add(alias);
+		else if (!alias.equals("s"))
+			throw new IllegalArgumentException("unknown table alias: " + alias);
+	}
+}
@@ -0,0 +1,122 @@
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * This class removes every show of a cinema on a date together with
+ * everything that hangs off those shows, in one transaction. The affected
+ * show ids are computed once into a temporary table and locked, which keeps
+ * new bookings out of them, and each dependent table, show_schedule included,
+ * is then cleared by a single set-based DELETE joined against that table.
+ * Booking rows cascade with their shows, so the bookings that were still
+ * active are counted as cancelled and their payments are deleted explicitly
+ * before they go.
+ *
+ */
+
+public class ShowRemoval {
+	private static final String CREATE = "create temp table removed_shows (sid bigint primary key) on commit drop;";
+
+	private static final String LOCK = "select s.sid from shows s join removed_shows r on r.sid = s.sid for update of s;";
+
+	// every user with a booking on a removed show, how many of those are pending,
+	// and the id of the removal's transaction
+	private static final String AFFECTED_USERS = "select b.email, count(*) filter (where b.status_code = "
+			+ BookingStatus.PENDING.code() + "), txid_current() from bookings b join removed_shows r on r.sid = b.sid "
+			+ "group by b.email;";
+
+	private final Ticketmaster _esql;
+
+	public ShowRemoval(Ticketmaster esql) {
+		this._esql = esql;
+	}
+
+	/**
+	 * What one removal deleted.
+	 */
+	public static class Removed {
+		final int shows;
+		final int plays;
+		final int seats;
+		final int bookings;
+		final int payments;
+
+		Removed(int shows, int plays, int seats, int bookings, int payments) {
+			this.shows = shows;
+			this.plays = plays;
+			this.seats = seats;
+			this.bookings = bookings;
+			this.payments = payments;
+		}
+
+		public int shows() {
+			return this.shows;
+		}
+
+		public int plays() {
+			return this.plays;
+		}
+
+		public int seats() {
+			return this.seats;
+		}
+
+		/**
+		 * @return the bookings that were not cancelled yet
+		 */
+		public int bookings() {
+			return this.bookings;
+		}
+
+		public int payments() {
+			return this.payments;
+		}
+	}
+
+	/**
+	 * Method to remove the shows of a cinema on a date.
+	 *
+	 * @param date   the show date, in any format Postgres accepts
+	 * @param cinema the cinema name
+	 * @return the number of rows removed from each table
+	 * @throws java.sql.SQLException when the removal failed; nothing is removed
+	 */
+	public Removed remove(String date, String cinema) throws SQLException {
+		final ShowQuery doomed = new ShowQuery().onDate(date).cinemaName(cinema);
+		final long[][] sids = new long[1][];
+		final List<List<String>> users = new ArrayList<List<String>>();
+		Removed removed = this._esql.inTransaction(new Ticketmaster.Transaction<Removed>() {
+			public Removed run() throws SQLException {
+				_esql.executeUpdate(CREATE);
+				_esql.executeUpdate("insert into removed_shows " + doomed.sidSet() + ";", doomed.params());
+				List<List<String>> locked = _esql.executeQueryAndReturnResult(LOCK);
+				sids[0] = new long[locked.size()];
+				for (int i = 0; i < locked.size(); i++)
+					sids[0][i] = Long.parseLong(locked.get(i).get(0));
+				if (locked.isEmpty())
+					return new Removed(0, 0, 0, 0, 0);
+
+				users.addAll(_esql.executeQueryAndReturnResult(AFFECTED_USERS));
+				int bookings = Integer.parseInt(_esql.executeQueryAndReturnResult("select count(*) from bookings b "
+						+ "join removed_shows r on r.sid = b.sid where b.status_code <> "
+						+ BookingStatus.CANCELLED.code() + ";").get(0).get(0));
+				int payments = _esql.executeUpdate("delete from payments p using bookings b, removed_shows r "
+						+ "where p.bid = b.bid and b.sid = r.sid;");
+				int seats = _esql.executeUpdate("delete from showseats ss using removed_shows r where ss.sid = r.sid;");
+				int plays = _esql.executeUpdate("delete from plays p using removed_shows r where p.sid = r.sid;");
+				_esql.executeUpdate("delete from show_schedule ss using removed_shows r where ss.sid = r.sid;");
+				_esql.executeUpdate("delete from bookings b using removed_shows r where b.sid = r.sid;");
+				int shows = _esql.executeUpdate("delete from shows s using removed_shows r where s.sid = r.sid;");
+				return new Removed(shows, plays, seats, bookings, payments);
+			}
+		});
+
+		for (long sid : sids[0])
+			this._esql.seats().invalidate(sid);
+		for (List<String> user : users) {
+			this._esql.itinerary().invalidate(user.get(0));
+			this._esql.pending().removed(user.get(0), Integer.parseInt(user.get(1)), Long.parseLong(user.get(2)));
+		}
+		return removed;
+	}
+}
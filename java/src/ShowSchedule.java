@@ -0,0 +1,84 @@
+import java.sql.SQLException;
+import java.util.List;
+
+/**
+ * This class keeps show_schedule, a denormalized copy of what is playing where
+ * and when: one row per show and theater with the cinema, movie and times, so
+ * the schedule listings are a single index range scan instead of a join over
+ * Movies, Shows, Plays, Theaters and Cinemas. The table is created and first
+ * filled by a migration and then maintained incrementally by the operations
+ * that change shows: added() in the same transaction that inserts a show's
+ * Plays row, and ShowRemoval deleting the rows of the shows it removes. A bulk
+ * load rebuilds it.
+ *
+ */
+
+public class ShowSchedule {
+	static final String COLUMNS = "sid, tid, cid, cname, tname, mvid, title, duration, sdate, sttime, edtime";
+
+	// the schedule rows of the shows the WHERE clause selects
+	static final String SELECT = "select s.sid, t.tid, c.cid, c.cname, t.tname, m.mvid, m.title, m.duration, "
+			+ "s.sdate, s.sttime, s.edtime from shows s join movies m on m.mvid = s.mvid "
+			+ "join plays p on p.sid = s.sid join theaters t on t.tid = p.tid join cinemas c on c.cid = t.cid";
+
+	/** Titles of the shows starting at a time on a date; served by show_schedule_start_idx. */
+	public static final String STARTING_AT = "select distinct title from show_schedule where sdate = ? and sttime = ? "
+			+ "order by title;";
+
+	/**
+	 * Showings of a movie (by mvid) at a cinema in a date range; one range scan
+	 * of show_schedule_cinema_idx, with mvid checked in the index.
+	 */
+	public static final String AT_CINEMA_BETWEEN = "select distinct title, duration, sdate, sttime from show_schedule "
+			+ "where cname = ? and sdate between ? and ? and mvid = ? order by sdate, sttime;";
+
+	private final Ticketmaster _esql;
+
+	public ShowSchedule(Ticketmaster esql) {
+		this._esql = esql;
+	}
+
+	/**
+	 * Method to add the schedule rows of a show after its Plays rows were
+	 * inserted. Call it inside the transaction that inserted them.
+	 *
+	 * @param sid the show id
+	 * @return the number of rows added
+	 * @throws java.sql.SQLException when the rows could not be added
+	 */
+	public int added(long sid) throws SQLException {
+		return this._esql.executeUpdate("insert into show_schedule (" + COLUMNS + ") " + SELECT
+				+ " where s.sid = ? on conflict (sid, tid) do nothing;", sid);
+	}
+
+	/**
+	 * Method to refill the whole table from the base tables, for example after
+	 * a bulk load.
+	 *
+	 * @return the number of rows in the table
+	 * @throws java.sql.SQLException when the table could not be refilled
+	 */
+	public int rebuild() throws SQLException {
+		int rows = this._esql.inTransaction(new Ticketmaster.Transaction<Integer>() {
+			public Integer run() throws SQLException {
+				_esql.executeUpdate("delete from show_schedule;");
+				return _esql.executeUpdate("insert into show_schedule (" + COLUMNS + ") " + SELECT + ";");
+			}
+		});
+		this._esql.executeUpdate("analyze show_schedule;");
+		return rows;
+	}
+
+	/**
+	 * Method to rebuild the table when it is empty while shows are playing,
+	 * such as when the data was loaded with psql after the migration ran.
+	 *
+	 * @throws java.sql.SQLException when the table could not be checked
+	 */
+	public void ensureBuilt() throws SQLException {
+		List<List<String>> stale = this._esql.executeQueryAndReturnResult(
+				"select exists (select 1 from plays) and not exists (select 1 from show_schedule);");
+		if ("t".equals(stale.get(0).get(0)))
+			System.out.println("Rebuilt the show schedule: " + rebuild() + " showings");
+	}
+}
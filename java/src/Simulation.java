@@ -0,0 +1,244 @@
+import java.io.BufferedReader;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * This class fires many simulated users at the booking flows inside this JVM.
+ * Every user is one RequestExecutor task that runs a script of BookingServer
+ * protocol commands a number of times, so thousands of users cost thousands of
+ * virtual threads rather than thousands of OS threads, and contention shows up
+ * where it really is: on seat rows, sequences and pool connections. Commands
+ * go through BookingServer.handle(), the same path as the socket clients.
+ *
+ * A script has one command per line; blank lines and lines starting with #
+ * are skipped. These placeholders are filled in per user and line:
+ *
+ * <pre>
+ * {n}        the user number, from 0
+ * {email}    the user's account, sampled from Users
+ * {sid}      a random playing show
+ * {seat}     a free seat of this line's {sid}, or of the user's last show
+ * {bid}      the booking made by the user's last successful BOOK
+ * {lastseat} the first seat of that booking
+ * </pre>
+ *
+ * Lines needing a {bid} are skipped until the user has booked. When all
+ * users are done, the throughput, per-command latency and the most common
+ * errors are printed.
+ *
+ */
+
+public class Simulation {
+	static final String[] DEFAULT_SCRIPT = { "SEATS {sid}", "BOOK {email} {sid} {seat}",
+			"CHANGE {bid} {lastseat}:{seat}", "ITINERARY {email}" };
+
+	private final Ticketmaster _esql;
+	private final BookingServer _server;
+	private final List<String> _emails = new ArrayList<String>();
+	private final List<Long> _sids = new ArrayList<Long>();
+
+	private final Map<String, LatencyHistogram> _latency = new ConcurrentHashMap<String, LatencyHistogram>();
+	private final Map<String, AtomicLong> _failures = new ConcurrentHashMap<String, AtomicLong>();
+	private final Map<String, AtomicLong> _errors = new ConcurrentHashMap<String, AtomicLong>();
+
+	public Simulation(Ticketmaster esql) {
+		this._esql = esql;
+		this._server = new BookingServer(esql, BookingServer.DEFAULT_PORT);
+	}
+
+	// what one user carries from line to line
+	private static class UserState {
+		final int n;
+		final String email;
+		long sid = -1;
+		String bid = null;
+		String lastSeat = null;
+
+		UserState(int n, String email) {
+			this.n = n;
+			this.email = email;
+		}
+	}
+
+	/**
+	 * Method to read a script file.
+	 *
+	 * @param path the file, or null for DEFAULT_SCRIPT
+	 * @return the commands
+	 * @throws java.io.IOException when the file could not be read
+	 */
+	public static List<String> script(String path) throws IOException {
+		List<String> lines = new ArrayList<String>();
+		if (path == null) {
+			Collections.addAll(lines, DEFAULT_SCRIPT);
+			return lines;
+		}
+		BufferedReader reader = new BufferedReader(new InputStreamReader(new FileInputStream(path), "UTF-8"));
+		try {
+			String line;
+			while ((line = reader.readLine()) != null) {
+				line = line.trim();
+				if (!line.isEmpty() && !line.startsWith("#"))
+					lines.add(line);
+			}
+		} finally {
+			reader.close();
+		}
+		return lines;
+	}
+
+	/**
+	 * Method to run the simulation and print its report.
+	 *
+	 * @param users      number of concurrent users
+	 * @param script     commands each user runs in order
+	 * @param iterations times each user runs the script
+	 * @throws java.sql.SQLException when the users or shows could not be sampled
+	 */
+	public void run(int users, final List<String> script, final int iterations) throws SQLException {
+		for (List<String> row : this._esql.executeQueryAndReturnResult("select email from users order by email limit ?;", users))
+			this._emails.add(row.get(0));
+		for (List<String> row : this._esql.executeQueryAndReturnResult("select distinct sid from plays limit 1000;"))
+			this._sids.add(Long.parseLong(row.get(0)));
+		if (this._emails.isEmpty() || this._sids.isEmpty())
+			throw new IllegalStateException("the database holds no users or playing shows to simulate against");
+
+		System.out.println("Simulating " + users + " users x " + iterations + " runs of " + script.size()
+				+ " commands on " + (this._esql.requests().virtual() ? "virtual" : "platform") + " threads, "
+				+ this._esql.pool().maxSize() + " connections");
+		final CountDownLatch done = new CountDownLatch(users);
+		long start = System.nanoTime();
+		for (int i = 0; i < users; i++) {
+			final UserState user = new UserState(i, this._emails.get(i % this._emails.size()));
+			this._esql.requests().submit(null, new Callable<Void>() {
+				public Void call() {
+					try {
+						for (int run = 0; run < iterations; run++)
+							for (String line : script)
+								execute(user, line);
+					} finally {
+						done.countDown();
+					}
+					return null;
+				}
+			});
+		}
+		try {
+			done.await();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			return;
+		}
+		report((System.nanoTime() - start) / 1e9);
+	}
+
+	private void execute(UserState user, String line) {
+		String command;
+		try {
+			command = expand(user, line);
+		} catch (SQLException e) {
+			count(this._errors, "seat lookup: " + e.getMessage());
+			return;
+		}
+		if (command == null)
+			return;
+		String verb = command.split("\\s+", 2)[0].toUpperCase(Locale.ROOT);
+
+		long begin = System.nanoTime();
+		String reply = this._server.handle(command);
+		histogram(verb).record(System.nanoTime() - begin);
+
+		if (reply.startsWith("ERR")) {
+			count(this._failures, verb);
+			count(this._errors, verb + " " + reply.substring(3).trim().replaceAll("[0-9]+", "#"));
+		} else if (verb.equals("BOOK")) {
+			String[] parts = command.split("\\s+");
+			user.bid = reply.substring(3).trim();
+			user.sid = Long.parseLong(parts[2]);
+			user.lastSeat = parts[3].split(",")[0];
+		} else if (verb.equals("CHANGE")) {
+			user.lastSeat = command.split("\\s+")[2].split(",")[0].split(":")[1];
+		}
+	}
+
+	// null when the line cannot run yet
+	private String expand(UserState user, String line) throws SQLException {
+		if ((line.contains("{bid}") || line.contains("{lastseat}")) && user.bid == null)
+			return null;
+		String command = line.replace("{n}", String.valueOf(user.n)).replace("{email}", user.email);
+		long sid = user.sid;
+		if (command.contains("{sid}")) {
+			sid = this._sids.get(ThreadLocalRandom.current().nextInt(this._sids.size()));
+			command = command.replace("{sid}", String.valueOf(sid));
+		}
+		if (command.contains("{seat}")) {
+			SeatAvailability.ShowSeats seats = sid < 0 ? null : this._esql.seats().show(sid);
+			int[] free = seats == null ? new int[0] : seats.free();
+			if (free.length == 0)
+				return null;
+			command = command.replace("{seat}", String.valueOf(free[ThreadLocalRandom.current().nextInt(free.length)]));
+		}
+		if (user.bid != null)
+			command = command.replace("{bid}", user.bid).replace("{lastseat}", user.lastSeat);
+		return command;
+	}
+
+	private LatencyHistogram histogram(String verb) {
+		LatencyHistogram histogram = this._latency.get(verb);
+		if (histogram == null) {
+			this._latency.putIfAbsent(verb, new LatencyHistogram());
+			histogram = this._latency.get(verb);
+		}
+		return histogram;
+	}
+
+	private static void count(Map<String, AtomicLong> counts, String key) {
+		AtomicLong count = counts.get(key);
+		if (count == null) {
+			counts.putIfAbsent(key, new AtomicLong());
+			count = counts.get(key);
+		}
+		count.incrementAndGet();
+	}
+
+	private void report(double seconds) {
+		long total = 0;
+		System.out.println(String.format(Locale.ROOT, "%-10s %8s %8s %9s %9s %9s %9s", "command", "count", "errors",
+				"p50 ms", "p95 ms", "p99 ms", "max ms"));
+		List<String> verbs = new ArrayList<String>(this._latency.keySet());
+		Collections.sort(verbs);
+		for (String verb : verbs) {
+			LatencyHistogram h = this._latency.get(verb);
+			AtomicLong failed = this._failures.get(verb);
+			total += h.count();
+			System.out.println(String.format(Locale.ROOT, "%-10s %8d %8d %9.2f %9.2f %9.2f %9.2f", verb, h.count(),
+					failed == null ? 0 : failed.get(), h.percentile(50) / 1e6, h.percentile(95) / 1e6,
+					h.percentile(99) / 1e6, h.max() / 1e6));
+		}
+		System.out.println(String.format(Locale.ROOT, "%d commands in %.2fs, %.0f/sec", total, seconds, total / seconds));
+
+		List<Map.Entry<String, AtomicLong>> errors = new ArrayList<Map.Entry<String, AtomicLong>>(this._errors.entrySet());
+		Collections.sort(errors, new Comparator<Map.Entry<String, AtomicLong>>() {
+			public int compare(Map.Entry<String, AtomicLong> a, Map.Entry<String, AtomicLong> b) {
+				return Long.compare(b.getValue().get(), a.getValue().get());
+			}
+		});
+		if (!errors.isEmpty())
+			System.out.println("Most common errors:");
+		for (int i = 0; i < errors.size() && i < 10; i++)
+			System.out.println(String.format(Locale.ROOT, "%8d  %s", errors.get(i).getValue().get(), errors.get(i).getKey()));
+	}
+}
@@ -0,0 +1,89 @@
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * This class keeps a bounded, least-recently-used cache of prepared statements
+ * for a single physical connection, keyed by the SQL text. Postgres only has to
+ * parse and plan a statement once, and after the driver's prepare threshold is
+ * reached it switches to a named server-side statement that is reused.
+ *
+ */
+
+public class StatementCache {
+	// default number of distinct SQL strings kept per connection
+	public static final int DEFAULT_CAPACITY = 64;
+
+	private final Connection _connection;
+	private final int _capacity;
+	private final LinkedHashMap<String, PreparedStatement> _statements;
+	private long _hits = 0;
+	private long _misses = 0;
+
+	public StatementCache(Connection connection, int capacity) {
+		this._connection = connection;
+		this._capacity = capacity;
+		// access-ordered so iteration starts at the least recently used entry
+		this._statements = new LinkedHashMap<String, PreparedStatement>(capacity * 2, 0.75f, true);
+	}
+
+	/**
+	 * Method to look up the prepared statement for the given SQL, preparing and
+	 * caching it on a miss. The least recently used statement is closed once the
+	 * cache grows past its capacity.
+	 *
+	 * @param sql the SQL text with '?' placeholders
+	 * @return a prepared statement owned by this cache; callers must not close it
+	 * @throws java.sql.SQLException when the statement could not be prepared
+	 */
+	public synchronized PreparedStatement prepare(String sql) throws SQLException {
+		PreparedStatement stmt = this._statements.get(sql);
+		if (stmt != null && !stmt.isClosed()) {
+			this._hits++;
+			return stmt;
+		}
+		this._misses++;
+		stmt = this._connection.prepareStatement(sql);
+		this._statements.put(sql, stmt);
+		if (this._statements.size() > this._capacity) {
+			Iterator<Map.Entry<String, PreparedStatement>> eldest = this._statements.entrySet().iterator();
+			PreparedStatement evicted = eldest.next().getValue();
+			eldest.remove();
+			try {
+				evicted.close();
+			} catch (SQLException e) {
+				// ignored.
+			}
+		}
+		return stmt;
+	}
+
+	public synchronized long hits() {
+		return this._hits;
+	}
+
+	public synchronized long misses() {
+		return this._misses;
+	}
+
+	public synchronized int size() {
+		return this._statements.size();
+	}
+
+	/**
+	 * Method to close every cached statement. The connection itself is left open.
+	 */
+	public synchronized void clear() {
+		for (PreparedStatement stmt : this._statements.values()) {
+			try {
+				stmt.close();
+			} catch (SQLException e) {
+				// ignored.
+			}
+		}
+		this._statements.clear();
+	}
+}
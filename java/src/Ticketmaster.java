@@ -11,9 +11,9 @@
  */
 
 
-import java.sql.DriverManager;
+import java.sql.Array;
 import java.sql.Connection;
-import java.sql.Statement;
+import java.sql.PreparedStatement;
 import java.sql.ResultSet;
 import java.sql.ResultSetMetaData;
 import java.sql.SQLException;
@@ -23,8 +23,11 @@ import java.io.IOException;
 import java.io.BufferedReader;
 import java.io.InputStreamReader;
 import java.util.List;
+import java.util.UUID;
 import java.util.ArrayList;
 import java.util.Date;
+import java.util.Properties;
+import java.util.concurrent.Callable;
 import java.time.Duration;
 import java.time.LocalTime; 
 
@@ -35,10 +38,65 @@ import java.time.LocalTime;
  */
 
 public class Ticketmaster {
-	// reference to physical database connection
-	private Connection _connection = null;
+	// pool of physical database connections, each with its own statement cache
+	private ConnectionPool _pool = null;
+	// connection of the transaction open on the current thread, if any
+	private final ThreadLocal<ConnectionPool.PooledConnection> _current = new ThreadLocal<ConnectionPool.PooledConnection>();
+	// block-wise primary key allocation from the DB sequences
+	private final IdAllocator _ids = new IdAllocator(this);
+	// all-or-nothing seat booking
+	private final ReservationEngine _reservations = new ReservationEngine(this);
+	// per-show free seat bitmaps
+	private final SeatAvailability _seats = new SeatAvailability(this);
+	// all-or-nothing seat changes of a booking
+	private final SeatExchange _exchanges = new SeatExchange(this);
+	// paged, briefly cached "my bookings" listings
+	private final BookingItinerary _itinerary = new BookingItinerary(this);
+	// movies, cinemas, theaters and cities by id and name, kept fresh by NOTIFY
+	private final ReferenceDataCache _refdata = new ReferenceDataCache(this);
+	// title substring search over the catalog
+	private final MovieSearch _search = new MovieSearch(this);
+	// chunked, resumable bulk cancellation and purge of bookings
+	private final MaintenanceJobs _maintenance = new MaintenanceJobs(this);
+	// set-based removal of a day's shows with everything that depends on them
+	private final ShowRemoval _showRemoval = new ShowRemoval(this);
+	// one task per operation, on virtual threads where available
+	private final RequestExecutor _requests = new RequestExecutor(this);
+	// buffered, paged listings in the configured output format
+	private final ResultRenderer _output = new ResultRenderer(this);
+	// denormalized what-plays-where-and-when for the schedule listings
+	private final ShowSchedule _schedule = new ShowSchedule(this);
+	// users with pending bookings, counted in memory
+	private final PendingBookings _pending = new PendingBookings(this);
+	// queued, batched and idempotent booking cancellation with refund
+	private final PaymentPipeline _payments = new PaymentPipeline(this);
+	// short-lived seat holds of bookings in progress, striped by show
+	private final SeatHolds _holds = new SeatHolds(this);
 	static BufferedReader in = new BufferedReader(new InputStreamReader(System.in));
 
+	/**
+	 * A unit of work that runs inside one database transaction.
+	 */
+	public interface Transaction<T> {
+		T run() throws SQLException;
+	}
+
+	/**
+	 * A callback that receives the rows of a streamed query one at a time.
+	 */
+	public interface RowHandler {
+		void row(Row row) throws SQLException;
+	}
+
+	// rows fetched per round trip by streamed queries
+	private int _fetchSize = Integer.getInteger("query.fetchSize", 256);
+	// menu operation running on the current thread, used to tag captured plans
+	private final ThreadLocal<String> _operation = new ThreadLocal<String>();
+	// EXPLAIN capture, null unless -Dexplain.file is set
+	private QueryPlanRecorder _plans = null;
+	// statement timings, row and byte counts per operation and query shape
+	private QueryMetrics _metrics = null;
+
 	public Ticketmaster(String dbname, String dbport, String user, String passwd) throws SQLException {
 		System.out.print("Connecting to database...");
 		try {
@@ -46,8 +104,64 @@ public class Ticketmaster {
 			String url = "jdbc:postgresql://localhost:" + dbport + "/" + dbname;
 			System.out.println("Connection URL: " + url + "\n");
 
-			// obtain a physical connection
-			this._connection = DriverManager.getConnection(url, user, passwd);
+			// string parameters are sent untyped so the server infers dates, times and
+			// numbers exactly as it did for quoted literals
+			Properties props = new Properties();
+			props.setProperty("user", user);
+			props.setProperty("password", passwd);
+			props.setProperty("stringtype", "unspecified");
+
+			// obtain the pooled physical connections
+			int minSize = Integer.getInteger("pool.min", 1);
+			int maxSize = Integer.getInteger("pool.max", 8);
+			long idleMillis = Long.getLong("pool.idleMillis", 60000L);
+			// connections idle for longer are validated before they are handed out
+			long validateMillis = Long.getLong("pool.validateMillis", 5000L);
+			this._pool = new ConnectionPool(url, props, minSize, maxSize, idleMillis, validateMillis);
+			this._plans = QueryPlanRecorder.fromSystemProperties();
+			this._metrics = QueryMetrics.fromSystemProperties();
+			final ConnectionPool pool = this._pool;
+			this._metrics.gauge("ticketmaster_pool_connections", "Open pooled connections.", new QueryMetrics.Gauge() {
+				public double value() {
+					return pool.size();
+				}
+			});
+			this._metrics.gauge("ticketmaster_pool_idle", "Idle pooled connections.", new QueryMetrics.Gauge() {
+				public double value() {
+					return pool.idle();
+				}
+			});
+			final SeatHolds holds = this._holds;
+			this._metrics.gauge("ticketmaster_seat_holds", "Seat holds in memory.", new QueryMetrics.Gauge() {
+				public double value() {
+					return holds.count();
+				}
+			});
+			final PaymentPipeline payments = this._payments;
+			this._metrics.gauge("ticketmaster_payments_queue_depth", "Cancellations waiting for a batch.",
+					new QueryMetrics.Gauge() {
+						public double value() {
+							return payments.queueDepth();
+						}
+					});
+			this._metrics.gauge("ticketmaster_payments_cancelled_total", "Bookings cancelled by the payment pipeline.",
+					new QueryMetrics.Gauge() {
+						public double value() {
+							return payments.cancelled();
+						}
+					});
+			this._metrics.gauge("ticketmaster_payments_batches_total", "Batches run by the payment pipeline.",
+					new QueryMetrics.Gauge() {
+						public double value() {
+							return payments.batches();
+						}
+					});
+			this._metrics.gauge("ticketmaster_payments_per_second", "Cancellations per second of batch work.",
+					new QueryMetrics.Gauge() {
+						public double value() {
+							return payments.throughput();
+						}
+					});
 			System.out.println("Done");
 		} catch (Exception e) {
 			System.err.println("Error - Unable to Connect to Database: " + e.getMessage());
@@ -56,64 +170,180 @@ public class Ticketmaster {
 		}
 	}
 
+	/**
+	 * Method to run a unit of work in a single transaction on one pooled
+	 * connection. Every execute call made by the work on this thread uses that
+	 * connection. The transaction commits when the work returns and rolls back
+	 * when it throws; a nested call joins the enclosing transaction.
+	 * 
+	 * @param work the statements to run
+	 * @return the value returned by the work
+	 * @throws java.sql.SQLException when the work or the commit failed
+	 */
+	public <T> T inTransaction(Transaction<T> work) throws SQLException {
+		if (this._current.get() != null)
+			return work.run();
+
+		ConnectionPool.PooledConnection pc = this._pool.borrow();
+		Connection c = pc.connection();
+		this._current.set(pc);
+		try {
+			c.setAutoCommit(false);
+			T result = work.run();
+			c.commit();
+			return result;
+		} catch (SQLException e) {
+			rollbackQuietly(c);
+			throw e;
+		} catch (RuntimeException e) {
+			rollbackQuietly(c);
+			throw e;
+		} finally {
+			this._current.remove();
+			// the pool restores autocommit before reuse
+			pc.close();
+		}
+	}
+
+	private static void rollbackQuietly(Connection c) {
+		try {
+			c.rollback();
+		} catch (SQLException e) {
+			// ignored.
+		}
+	}
+
+	/**
+	 * Method to get the connection for the next statement: the one of the open
+	 * transaction, or a freshly borrowed one in autocommit mode.
+	 */
+	private ConnectionPool.PooledConnection acquire() throws SQLException {
+		ConnectionPool.PooledConnection pc = this._current.get();
+		return pc != null ? pc : this._pool.borrow();
+	}
+
+	/**
+	 * Method to give back a connection obtained from acquire() unless it belongs
+	 * to the open transaction.
+	 */
+	private void release(ConnectionPool.PooledConnection pc) {
+		if (pc != this._current.get())
+			pc.close();
+	}
+
+	/**
+	 * Method to fetch a cached prepared statement for the SQL and bind the
+	 * parameters to its placeholders in order.
+	 * 
+	 * @param pc     the connection to prepare on
+	 * @param sql    the SQL string with '?' placeholders
+	 * @param params values for the placeholders
+	 * @return the bound statement, owned by the statement cache
+	 * @throws java.sql.SQLException when the statement could not be prepared
+	 */
+	private PreparedStatement prepare(ConnectionPool.PooledConnection pc, String sql, Object... params)
+			throws SQLException {
+		if (this._plans != null)
+			this._plans.capture(pc.connection(), operation(), sql, params);
+		PreparedStatement stmt = pc.statements().prepare(sql);
+		for (int i = 0; i < params.length; i++)
+			stmt.setObject(i + 1, params[i]);
+		return stmt;
+	}
+
+	/**
+	 * Method to add an executed statement to the metrics, tagged with the
+	 * current operation. Statements that failed to prepare (start 0) are not
+	 * timed.
+	 */
+	private void record(String sql, Object[] params, long start, long rows, long bytes) {
+		if (start != 0)
+			this._metrics.record(operation(), sql, params, System.nanoTime() - start, rows, bytes);
+	}
+
 	/**
 	 * Method to execute an update SQL statement. Update SQL instructions includes
 	 * CREATE, INSERT, UPDATE, DELETE, and DROP.
 	 * 
-	 * @param sql the input SQL string
+	 * @param sql    the input SQL string with '?' placeholders
+	 * @param params values for the placeholders
+	 * @return the number of rows affected
 	 * @throws java.sql.SQLException when update failed
 	 */
-	public void executeUpdate(String sql) throws SQLException {
-		// creates a statement object
-		Statement stmt = this._connection.createStatement();
-
-		// issues the update instruction
-		stmt.executeUpdate(sql);
-
-		// close the instruction
-		stmt.close();
+	public int executeUpdate(String sql, Object... params) throws SQLException {
+		ConnectionPool.PooledConnection pc = acquire();
+		long start = 0;
+		int rows = -1;
+		try {
+			PreparedStatement stmt = prepare(pc, sql, params);
+			start = System.nanoTime();
+			// issues the update instruction on the cached statement
+			rows = stmt.executeUpdate();
+			return rows;
+		} finally {
+			record(sql, params, start, rows, 0);
+			release(pc);
+		}
 	}// end executeUpdate
 
 	/**
-	 * Method to execute an input query SQL instruction (i.e. SELECT). This method
-	 * issues the query to the DBMS and outputs the results to standard out.
+	 * Method to execute an input query SQL instruction (i.e. SELECT) and hand
+	 * every row to a callback as it arrives. The query runs inside a transaction
+	 * with a fetch size, so the driver pulls the result through a cursor in
+	 * batches and memory use stays constant however many rows there are.
 	 * 
-	 * @param query the input query string
+	 * @param query   the input query string with '?' placeholders
+	 * @param handler receives each row
+	 * @param params  values for the placeholders
 	 * @return the number of rows returned
 	 * @throws java.sql.SQLException when failed to execute the query
 	 */
-	public int executeQueryAndPrintResult(String query) throws SQLException {
-		// creates a statement object
-		Statement stmt = this._connection.createStatement();
-
-		// issues the query instruction
-		ResultSet rs = stmt.executeQuery(query);
-
-		/*
-		 * obtains the metadata object for the returned result set. The metadata
-		 * contains row and column info.
-		 */
-		ResultSetMetaData rsmd = rs.getMetaData();
-		int numCol = rsmd.getColumnCount();
-		int rowCount = 0;
-
-		// iterates through the result set and output them to standard out.
-		boolean outputHeader = true;
-		while (rs.next()) {
-			if (outputHeader) {
-				for (int i = 1; i <= numCol; i++) {
-					System.out.print(rsmd.getColumnName(i) + "\t");
+	public int streamQuery(final String query, final RowHandler handler, final Object... params) throws SQLException {
+		return inTransaction(new Transaction<Integer>() {
+			public Integer run() throws SQLException {
+				PreparedStatement stmt = prepare(_current.get(), query, params);
+				stmt.setFetchSize(_fetchSize);
+				long start = System.nanoTime();
+				int rowCount = -1;
+				Row row = null;
+				try {
+					ResultSet rs = stmt.executeQuery();
+					try {
+						row = new Row(rs);
+						rowCount = 0;
+						while (rs.next()) {
+							handler.row(row);
+							++rowCount;
+						}
+						return rowCount;
+					} finally {
+						rs.close();
+					}
+				} finally {
+					// the statement is cached; later callers get the default behaviour
+					stmt.setFetchSize(0);
+					record(query, params, start, rowCount, row == null ? 0 : row.bytes());
 				}
-				System.out.println();
-				outputHeader = false;
 			}
-			for (int i = 1; i <= numCol; ++i)
-				System.out.print(rs.getString(i) + "\t");
-			System.out.println();
-			++rowCount;
-		} // end while
-		stmt.close();
-		return rowCount;
+		});
+	}
+
+	public void setFetchSize(int fetchSize) {
+		this._fetchSize = fetchSize;
+	}
+
+	/**
+	 * Method to execute an input query SQL instruction (i.e. SELECT). This method
+	 * issues the query to the DBMS and streams the results to standard out, or
+	 * to -Doutput.file, in the format chosen by -Doutput.format.
+	 * 
+	 * @param query  the input query string with '?' placeholders
+	 * @param params values for the placeholders
+	 * @return the number of rows returned
+	 * @throws java.sql.SQLException when failed to execute the query
+	 */
+	public int executeQueryAndPrintResult(String query, Object... params) throws SQLException {
+		return this._output.print(query, params);
 	}
 
 	/**
@@ -121,27 +351,35 @@ public class Ticketmaster {
 	 * issues the query to the DBMS and returns the results as a list of records.
 	 * Each record in turn is a list of attribute values
 	 * 
-	 * @param query the input query string
+	 * @param query  the input query string with '?' placeholders
+	 * @param params values for the placeholders
 	 * @return the query result as a list of records
 	 * @throws java.sql.SQLException when failed to execute the query
 	 */
-	public List<List<String>> executeQueryAndReturnResult(String query) throws SQLException {
-		// creates a statement object
-		Statement stmt = this._connection.createStatement();
-
-		// issues the query instruction
-		ResultSet rs = stmt.executeQuery(query);
+	public List<List<String>> executeQueryAndReturnResult(String query, Object... params) throws SQLException {
+		ConnectionPool.PooledConnection pc = acquire();
+		long start = 0;
+		List<List<String>> result = null;
+		try {
+			PreparedStatement stmt = prepare(pc, query, params);
+			start = System.nanoTime();
+			result = collectResult(stmt.executeQuery());
+			return result;
+		} finally {
+			record(query, params, start, result == null ? -1 : result.size(), bytesOf(result));
+			release(pc);
+		}
+	}// end executeQueryAndReturnResult
 
+	private static List<List<String>> collectResult(ResultSet rs) throws SQLException {
 		/*
 		 * obtains the metadata object for the returned result set. The metadata
 		 * contains row and column info.
 		 */
 		ResultSetMetaData rsmd = rs.getMetaData();
 		int numCol = rsmd.getColumnCount();
-		int rowCount = 0;
 
 		// iterates through the result set and saves the data returned by the query.
-		boolean outputHeader = false;
 		List<List<String>> result = new ArrayList<List<String>>();
 		while (rs.next()) {
 			List<String> record = new ArrayList<String>();
@@ -149,39 +387,76 @@ public class Ticketmaster {
 				record.add(rs.getString(i));
 			result.add(record);
 		} // end while
-		stmt.close();
+		rs.close();
 		return result;
-	}// end executeQueryAndReturnResult
+	}
+
+	private static long bytesOf(List<List<String>> result) {
+		long bytes = 0;
+		if (result != null)
+			for (List<String> record : result)
+				for (String value : record)
+					if (value != null)
+						bytes += value.length();
+		return bytes;
+	}
 
 	/**
 	 * Method to execute an input query SQL instruction (i.e. SELECT). This method
 	 * issues the query to the DBMS and returns the number of results
 	 * 
-	 * @param query the input query string
+	 * @param query  the input query string with '?' placeholders
+	 * @param params values for the placeholders
 	 * @return the number of rows returned
 	 * @throws java.sql.SQLException when failed to execute the query
 	 */
-	public int executeQuery(String query) throws SQLException {
-		// creates a statement object
-		Statement stmt = this._connection.createStatement();
-
-		// issues the query instruction
-		ResultSet rs = stmt.executeQuery(query);
-
-		int rowCount = 0;
+	public int executeQuery(String query, Object... params) throws SQLException {
+		ConnectionPool.PooledConnection pc = acquire();
+		long start = 0;
+		int rowCount = -1;
+		try {
+			PreparedStatement stmt = prepare(pc, query, params);
+			start = System.nanoTime();
+			// issues the query instruction
+			ResultSet rs = stmt.executeQuery();
+
+			rowCount = 0;
+
+			// iterates through the result set and count nuber of results.
+			if (rs.next()) {
+				rowCount++;
+			} // end while
+			rs.close();
+			return rowCount;
+		} finally {
+			record(query, params, start, rowCount, 0);
+			release(pc);
+		}
+	}
 
-		// iterates through the result set and count nuber of results.
-		if (rs.next()) {
-			rowCount++;
-		} // end while
-		stmt.close();
-		return rowCount;
+	/**
+	 * Method to build a SQL array parameter, such as a list of ids bound to a
+	 * single '?' and expanded with unnest() or = any().
+	 * 
+	 * @param type     the SQL element type name, such as int8
+	 * @param elements the array elements
+	 * @return an array usable as a statement parameter
+	 * @throws java.sql.SQLException when the array could not be created
+	 */
+	public Array createArray(String type, Object[] elements) throws SQLException {
+		ConnectionPool.PooledConnection pc = acquire();
+		try {
+			return pc.connection().createArrayOf(type, elements);
+		} finally {
+			release(pc);
+		}
 	}
 
 	/**
 	 * Method to fetch the last value from sequence. This method issues the query to
 	 * the DBMS and returns the current value of sequence used for autogenerated
-	 * keys
+	 * keys. Call it inside inTransaction() so it runs on the session that
+	 * advanced the sequence.
 	 * 
 	 * @param sequence name of the DB sequence
 	 * @return current value of a sequence
@@ -189,25 +464,119 @@ public class Ticketmaster {
 	 */
 
 	public int getCurrSeqVal(String sequence) throws SQLException {
-		Statement stmt = this._connection.createStatement();
-
-		ResultSet rs = stmt.executeQuery(String.format("Select currval('%s')", sequence));
-		if (rs.next())
-			return rs.getInt(1);
+		List<List<String>> result = executeQueryAndReturnResult("Select currval(?)", sequence);
+		if (!result.isEmpty())
+			return Integer.parseInt(result.get(0).get(0));
 		return -1;
 	}
 
 	/**
-	 * Method to close the physical connection if it is open.
+	 * Method to report prepared statement cache effectiveness across the pooled
+	 * connections.
+	 * 
+	 * @return a one line summary of cache hits and misses
+	 */
+	public String statementCacheStats() {
+		return this._pool.statementCacheStats();
+	}
+
+	/**
+	 * Method to name the menu operation the current thread is running, so the
+	 * statements it issues can be attributed to it.
+	 * 
+	 * @param name the operation name, such as AddBooking; null clears it
+	 */
+	public void setOperation(String name) {
+		this._operation.set(name);
+	}
+
+	public String operation() {
+		String name = this._operation.get();
+		return name != null ? name : "-";
+	}
+
+	public QueryMetrics metrics() {
+		return this._metrics;
+	}
+
+	public ConnectionPool pool() {
+		return this._pool;
+	}
+
+	public IdAllocator ids() {
+		return this._ids;
+	}
+
+	public ReservationEngine reservations() {
+		return this._reservations;
+	}
+
+	public SeatExchange exchanges() {
+		return this._exchanges;
+	}
+
+	public SeatAvailability seats() {
+		return this._seats;
+	}
+
+	public BookingItinerary itinerary() {
+		return this._itinerary;
+	}
+
+	public ReferenceDataCache refdata() {
+		return this._refdata;
+	}
+
+	public MovieSearch search() {
+		return this._search;
+	}
+
+	public MaintenanceJobs maintenance() {
+		return this._maintenance;
+	}
+
+	public ShowRemoval showRemoval() {
+		return this._showRemoval;
+	}
+
+	public RequestExecutor requests() {
+		return this._requests;
+	}
+
+	public ResultRenderer output() {
+		return this._output;
+	}
+
+	public ShowSchedule schedule() {
+		return this._schedule;
+	}
+
+	public PendingBookings pending() {
+		return this._pending;
+	}
+
+	public PaymentPipeline payments() {
+		return this._payments;
+	}
+
+	public SeatHolds holds() {
+		return this._holds;
+	}
+
+	/**
+	 * Method to close the pooled physical connections if they are open.
 	 */
 	public void cleanup() {
-		try {
-			if (this._connection != null) {
-				this._connection.close();
-			} // end if
-		} catch (SQLException e) {
-			// ignored.
-		} // end try
+		this._requests.close();
+		this._payments.close();
+		this._holds.close();
+		this._maintenance.close();
+		this._refdata.close();
+		if (this._metrics != null)
+			this._metrics.close();
+		if (this._pool != null) {
+			this._pool.close();
+		} // end if
 	}// end cleanup
 
 	/**
@@ -217,9 +586,10 @@ public class Ticketmaster {
 	 *             file>
 	 */
 	public static void main(String[] args) {
-		if (args.length != 3) {
+		if (args.length < 3) {
 			System.err.println("Usage: " + "java [-classpath <classpath>] " + Ticketmaster.class.getName()
-					+ " <dbname> <port> <user>");
+					+ " <dbname> <port> <user> [serve [<listen port>] | load [<data dir>]"
+					+ " | simulate <users> [<script> [<iterations>]]]");
 			return;
 		} // end if
 
@@ -243,85 +613,30 @@ public class Ticketmaster {
 			String user = args[2];
 
 			esql = new Ticketmaster(dbname, dbport, user, "");
-
-			boolean keepon = true;
-			while (keepon) {
-				System.out.println("MAIN MENU");
-				System.out.println("---------");
-				System.out.println("1. Add User");
-				System.out.println("2. Add Booking");
-				System.out.println("3. Add Movie Showing for an Existing Theater");
-				System.out.println("4. Cancel Pending Bookings");
-				System.out.println("5. Change Seats Reserved for a Booking");
-				System.out.println("6. Remove a Payment");
-				System.out.println("7. Clear Cancelled Bookings");
-				System.out.println("8. Remove Shows on a Given Date");
-				System.out.println("9. List all Theaters in a Cinema Playing a Given Show");
-				System.out.println("10. List all Shows that Start at a Given Time and Date");
-				System.out.println("11. List Movie Titles Containing \"love\" Released After 2010");
-				System.out.println("12. List the First Name, Last Name, and Email of Users with a Pending Booking");
-				System.out.println(
-						"13. List the Title, Duration, Date, and Time of Shows Playing a Given Movie at a Given Cinema During a Date Range");
-				System.out.println(
-						"14. List the Movie Title, Show Date & Start Time, Theater Name, and Cinema Seat Number for all Bookings of a Given User");
-				System.out.println("15. EXIT");
-
-				/*
-				 * FOLLOW THE SPECIFICATION IN THE PROJECT DESCRIPTION
-				 */
-				switch (readChoice()) {
-					case 1:
-						AddUser(esql);
-						break;
-					case 2:
-						AddBooking(esql);
-						break;
-					case 3:
-						AddMovieShowingToTheater(esql);
-						break;
-					case 4:
-						CancelPendingBookings(esql);
-						break;
-					case 5:
-						ChangeSeatsForBooking(esql);
-						break;
-					case 6:
-						RemovePayment(esql);
-						break;
-					case 7:
-						ClearCancelledBookings(esql);
-						break;
-					case 8:
-						RemoveShowsOnDate(esql);
-						break;
-					case 9:
-						ListTheatersPlayingShow(esql);
-						break;
-					case 10:
-						ListShowsStartingOnTimeAndDate(esql);
-						break;
-					case 11:
-						ListMovieTitlesContainingLoveReleasedAfter2010(esql);
-						break;
-					case 12:
-						ListUsersWithPendingBooking(esql);
-						break;
-					case 13:
-						ListMovieAndShowInfoAtCinemaInDateRange(esql);
-						break;
-					case 14:
-						ListBookingInfoForUser(esql);
-						break;
-					case 15:
-						keepon = false;
-						break;
-				}
+			new SchemaMigrator(esql).migrate();
+			esql.schedule().ensureBuilt();
+			esql.refdata().start();
+			esql.maintenance().resumeAll();
+
+			String mode = args.length > 3 ? args[3] : "menu";
+			if (mode.equals("serve")) {
+				int listenPort = args.length > 4 ? Integer.parseInt(args[4]) : BookingServer.DEFAULT_PORT;
+				new BookingServer(esql, listenPort).serve();
+			} else if (mode.equals("load")) {
+				new BulkLoader(esql).load(new File(args.length > 4 ? args[4] : "../data"));
+			} else if (mode.equals("simulate")) {
+				int users = args.length > 4 ? Integer.parseInt(args[4]) : 1000;
+				List<String> script = Simulation.script(args.length > 5 && !args[5].equals("-") ? args[5] : null);
+				new Simulation(esql).run(users, script, args.length > 6 ? Integer.parseInt(args[6]) : 1);
+			} else {
+				runMenu(esql);
 			}
 		} catch (Exception e) {
 			System.err.println(e.getMessage());
 		} finally {
 			try {
 				if (esql != null) {
+					System.out.println(esql.statementCacheStats());
 					System.out.print("Disconnecting from database...");
 					esql.cleanup();
 					System.out.println("Done\n\nBye !");
@@ -332,6 +647,138 @@ public class Ticketmaster {
 		}
 	}
 
+	// menu choice -> operation name used to tag statements
+	static final String[] OPERATIONS = { null, "AddUser", "AddBooking", "AddMovieShowingToTheater",
+			"CancelPendingBookings", "ChangeSeatsForBooking", "RemovePayment", "ClearCancelledBookings",
+			"RemoveShowsOnDate", "ListTheatersPlayingShow", "ListShowsStartingOnTimeAndDate",
+			"ListMovieTitlesContainingLoveReleasedAfter2010", "ListUsersWithPendingBooking",
+			"ListMovieAndShowInfoAtCinemaInDateRange", "ListBookingInfoForUser" };
+
+	/**
+	 * Method to run the interactive menu on standard in until the user exits.
+	 * 
+	 * @param esql the connected database utility
+	 */
+	public static void runMenu(final Ticketmaster esql) throws IOException, SQLException {
+		//background job progress waits for the gap between operations
+		esql.maintenance().deferMessages();
+		boolean keepon = true;
+		while (keepon) {
+			esql.maintenance().printMessages();
+			System.out.println("MAIN MENU");
+			System.out.println("---------");
+			System.out.println("1. Add User");
+			System.out.println("2. Add Booking");
+			System.out.println("3. Add Movie Showing for an Existing Theater");
+			System.out.println("4. Cancel Pending Bookings");
+			System.out.println("5. Change Seats Reserved for a Booking");
+			System.out.println("6. Remove a Payment");
+			System.out.println("7. Clear Cancelled Bookings");
+			System.out.println("8. Remove Shows on a Given Date");
+			System.out.println("9. List all Theaters in a Cinema Playing a Given Show");
+			System.out.println("10. List all Shows that Start at a Given Time and Date");
+			System.out.println("11. List Movie Titles Containing \"love\" Released After 2010");
+			System.out.println("12. List the First Name, Last Name, and Email of Users with a Pending Booking");
+			System.out.println(
+					"13. List the Title, Duration, Date, and Time of Shows Playing a Given Movie at a Given Cinema During a Date Range");
+			System.out.println(
+					"14. List the Movie Title, Show Date & Start Time, Theater Name, and Cinema Seat Number for all Bookings of a Given User");
+			System.out.println("15. EXIT");
+
+			/*
+			 * FOLLOW THE SPECIFICATION IN THE PROJECT DESCRIPTION
+			 */
+			final int choice = readChoice();
+			if (choice == 15) {
+				keepon = false;
+				continue;
+			}
+			// each operation is a task of its own, like the server's and the simulation's
+			esql.requests().run(choice >= 1 && choice < OPERATIONS.length ? OPERATIONS[choice] : null,
+					new Callable<Void>() {
+						public Void call() throws IOException, SQLException {
+							runChoice(esql, choice);
+							return null;
+						}
+					});
+		}
+	}
+
+	/**
+	 * Method to run one menu operation on the calling thread.
+	 *
+	 * @param esql   the connected database utility
+	 * @param choice the menu number
+	 */
+	static void runChoice(Ticketmaster esql, int choice) throws IOException, SQLException {
+		switch (choice) {
+			case 1:
+				AddUser(esql);
+				break;
+			case 2:
+				AddBooking(esql);
+				break;
+			case 3:
+				AddMovieShowingToTheater(esql);
+				break;
+			case 4:
+				CancelPendingBookings(esql);
+				break;
+			case 5:
+				ChangeSeatsForBooking(esql);
+				break;
+			case 6:
+				RemovePayment(esql);
+				break;
+			case 7:
+				ClearCancelledBookings(esql);
+				break;
+			case 8:
+				RemoveShowsOnDate(esql);
+				break;
+			case 9:
+				ListTheatersPlayingShow(esql);
+				break;
+			case 10:
+				ListShowsStartingOnTimeAndDate(esql);
+				break;
+			case 11:
+				ListMovieTitlesContainingLoveReleasedAfter2010(esql);
+				break;
+			case 12:
+				ListUsersWithPendingBooking(esql);
+				break;
+			case 13:
+				ListMovieAndShowInfoAtCinemaInDateRange(esql);
+				break;
+			case 14:
+				ListBookingInfoForUser(esql);
+				break;
+		}
+	}
+
+	/**
+	 * Method to print a listing a page at a time, asking after each full page
+	 * whether to show the next one unless the output goes to a file.
+	 *
+	 * @param esql   the connected database utility
+	 * @param query  the listing with '?' placeholders
+	 * @param key    a unique result column to page by
+	 * @param params values for the placeholders
+	 * @return the number of rows printed
+	 */
+	public static int printPages(Ticketmaster esql, String query, String key, Object... params)
+			throws IOException, SQLException {
+		ResultRenderer.Pager pager = esql.output().toFile() ? null : new ResultRenderer.Pager() {
+			public boolean more(int rowsSoFar) throws IOException {
+				System.out.print("-- " + rowsSoFar + " rows, Enter for more or q to stop -- ");
+				String answer = in.readLine();
+				return answer != null && !answer.trim().equalsIgnoreCase("q");
+			}
+		};
+		return esql.output().page(query, key, pager, params);
+	}
+
 	public static int readChoice() {
 		int input;
 		// returns only if a correct value is given.
@@ -363,18 +810,19 @@ public class Ticketmaster {
 		String password = in.readLine();                
 
                 //enter user into DB
-                esql.executeUpdate("insert into users values('" + email + "', '" + lname + "', '" + fname  +"', '" + phone + "', '" + password + "');");
+                esql.executeUpdate("insert into users values(?, ?, ?, ?, ?);", email, lname, fname, phone, password);
                 
 	}
 
 	public static void AddBooking(Ticketmaster esql) throws IOException, SQLException {// 2
-		String email, title, cinema, mvid;
+		String email, title, cinema;
+		long mvid;
 
 		System.out.println("Please enter email of account you would like to make the booking with: ");
 		email = in.readLine();
 		
 		//validate email exists in db
-		List<List<String>> user = esql.executeQueryAndReturnResult("select email from users where email = '" + email + "';");
+		List<List<String>> user = esql.executeQueryAndReturnResult("select email from users where email = ?;", email);
 		if(user != null && user.isEmpty()) {
 			//given email is invalid
 			System.out.println("Invalid email address! Try again.");
@@ -384,9 +832,9 @@ public class Ticketmaster {
 		System.out.println("Enter movie you would like to see: ");
 		title = in.readLine();
 		//validate movie exists
-		List<List<String>> movieid = esql.executeQueryAndReturnResult("select mvid from movies where title = '" + title + "';");
-		if(movieid != null && !movieid.isEmpty()) {
-			mvid = movieid.get(0).get(0);
+		ReferenceDataCache.Movie movie = esql.refdata().movieByTitle(title);
+		if(movie != null) {
+			mvid = movie.id();
 		} else {
 			//given movie is invalid
 			System.out.println("Not a valid movie title! Try again.");
@@ -398,8 +846,9 @@ public class Ticketmaster {
 		System.out.println("We found these showings at that cinema:");
 
 		//pull list of possible showings
-		//esql.executeQueryAndPrintResult("select sid, sdate, sttime from shows where mvid = '" + mvid + "' and sid in (select sid from plays where tid in (select tid from theaters where cid in (select cid from cinemas where cname = '" + cinema + "')));");
-		esql.executeQueryAndPrintResult("select sid, sdate, sttime from shows where mvid = '2' and sid in (select sid from plays where tid in (select tid from theaters where tname = '" + cinema + " Theaters 1'));");
+		ShowQuery showings = new ShowQuery().select("s.sid", "s.sdate", "s.sttime").distinct()
+				.mvid(mvid).cinemaName(cinema).orderBy("s.sdate, s.sttime");
+		esql.executeQueryAndPrintResult(showings.sql(), showings.params());
 		System.out.println("Enter sid of showing you would like to attend. If there are no showings listed, enter \"no showing\": ");
 		String sid = in.readLine();
 		
@@ -408,55 +857,60 @@ public class Ticketmaster {
 			return;
 		}
 		
-		//get fate and time in proper format
-		List<List<String>> showingdatetime = esql.executeQueryAndReturnResult("select sdate, sttime from shows where sid = '" + sid + "';");
-		String datetime = "";
-		if(showingdatetime != null && !showingdatetime.isEmpty()) {
-			datetime = showingdatetime.get(0).get(0) + " " +  showingdatetime.get(0).get(1);
-		}
-		
-		//bid and payment status
-		List<List<String>> maxbid = esql.executeQueryAndReturnResult("select max(bid) from bookings;");
-		String bid = Integer.toString(Integer.parseInt(maxbid.get(0).get(0)) + 1);
-		String status = "Paid";
-		
 		//book seating
 		System.out.println("How many seats would you like to reserve? ");
 		String seats = in.readLine();
 		int numSeats = Integer.parseInt(seats);
-		
-		List<List<String>> theaterid = esql.executeQueryAndReturnResult("select tid from plays where sid = '" + sid + "';");
-		String tid = theaterid.get(0).get(0);
-		
-		//enter booking info into table
-		String q1 = "insert into bookings values ('" + bid + "', '" + status + "', '" + datetime + "', '" + seats + "', '" + sid + "', '" + email + "');";
-                esql.executeUpdate(q1);
-
-		//reserve seat selections
-		for(int i = 0; i < numSeats; i++) {
-			System.out.println("These are the available seats in the theater. Enter seat number you want to reserve. If there are no empty seats, enter \"no seats\": ");
-			esql.executeQueryAndPrintResult("select sno from cinemaseats where tid = '" + tid + "' and csid not in (select csid from showseats);");
-			String sno = in.readLine();
-		
-			if(sno.equals("no seats")) {
+
+		//hold each seat as it is picked, then book all the held seats in one transaction
+		long show = Long.parseLong(sid);
+		String holder = UUID.randomUUID().toString();
+		int[] snos = new int[numSeats];
+		try {
+			for(int i = 0; i < numSeats; i++) {
+				System.out.println("These are the available seats in the theater. Enter seat number you want to reserve. If there are no empty seats, enter \"no seats\": ");
+				esql.holds().printAvailable(show, holder);
+				String sno = in.readLine();
+			
+				if(sno.equals("no seats")) {
+					return;
+				}
+				
+				int pick = Integer.parseInt(sno);
+				boolean picked = false;
+				for(int j = 0; j < i; j++)
+					picked |= snos[j] == pick;
+				if(picked) {
+					System.out.println("You already picked that seat. Pick another one.");
+					i--;
+				} else if(!esql.holds().hold(holder, show, pick)) {
+					System.out.println("Sorry, that seat is not available. Pick another one.");
+					i--;
+				} else {
+					snos[i] = pick;
+				}
+			}	
+
+			//every picked seat is booked, or none if a hold ran out meanwhile
+			try {
+				esql.holds().checkout(holder, email, show, snos);
+			} catch (ReservationEngine.SeatUnavailableException e) {
+				System.out.println("Sorry, " + e.getMessage() + " Try again.");
+				return;
+			} catch (IllegalArgumentException e) {
+				System.out.println("Sorry, " + e.getMessage() + ". Try again.");
 				return;
 			}
-			
-			String csid = esql.executeQueryAndReturnResult("select csid from cinemaseats where tid = '" + tid + "' and sno = '" + sno + "';").get(0).get(0);
-			String price = "8";
-			
-			List<List<String>> maxssid = esql.executeQueryAndReturnResult("select max(ssid) from showseats;");
-                	String ssid = Integer.toString(Integer.parseInt(maxssid.get(0).get(0)) + 1);
-			
-			String q = "insert into showseats values('" + ssid + "', '" + sid + "', '" + csid + "', '" + bid + "', '" + price + "');";
-			esql.executeUpdate(q);
-		}	
+		} finally {
+			//a no-op after checkout; otherwise frees the seats for others right away
+			esql.holds().release(holder, show);
+		}
 
 		System.out.println("Your booking was sucessfully processed!");
 	}
 
 
-	public static void AddMovieShowingToTheater(Ticketmaster esql) throws IOException, SQLException {// 3
+	public static void AddMovieShowingToTheater(final Ticketmaster esql) throws IOException, SQLException {// 3
 		/*insert into movies (mvid, title, rdate, country, description, duration, lang, genre) values
 		 (54, 'School of Rock', '10/03/2003', 'United States', 'Good Movie', 6180, 'en', 'Comedy');
 
@@ -465,16 +919,15 @@ public class Ticketmaster {
 		 insert into plays (sid, tid) values (201, 444);
 
 	*/
-	String title, releaseDate, country, description, lang, genre, sdate, sttime, edtime, q1, q2, q3;
-	int mvid, sid, tid, duration;
+	final String title, releaseDate, country, description, lang, genre, sdate, sttime, edtime;
+	final long mvid, sid;
+	int tid, duration;
 
 
 
-	List<List<String>> mvidMax = esql.executeQueryAndReturnResult("select max(mvid) from movies;");
-	mvid = Integer.parseInt(mvidMax.get(0).get(0)) + 1;
+	mvid = esql.ids().next(IdAllocator.MOVIES);
 
-	List<List<String>> sidMax = esql.executeQueryAndReturnResult("select max(sid) from shows;");
-	sid = Integer.parseInt(sidMax.get(0).get(0)) + 1;
+	sid = esql.ids().next(IdAllocator.SHOWS);
 
 	System.out.println("**** Movie Information ****");
 	System.out.print("Movie Title: ");
@@ -527,44 +980,52 @@ public class Ticketmaster {
 	System.out.println("");
 
 
-	List<List<String>> tidMin = esql.executeQueryAndReturnResult("select min(tid) from theaters;");
-	int tidMIN = Integer.parseInt(tidMin.get(0).get(0));
-
-	List<List<String>> tidMax = esql.executeQueryAndReturnResult("select max(tid) from theaters;");
-	int tidMAX = Integer.parseInt(tidMax.get(0).get(0));
+	long[] tidRange = esql.refdata().theaterIdRange();
+	if (tidRange == null) {
+		System.out.println("There are no theaters to show the movie in.");
+		return;
+	}
 
-	System.out.print("Theater ID (Between " + tidMIN + " and " + tidMAX + ") : ");
-	tid = Integer.parseInt(in.readLine());
+	do {
+		System.out.print("Theater ID (Between " + tidRange[0] + " and " + tidRange[1] + ") : ");
+		try {
+			tid = Integer.parseInt(in.readLine());
+			if (esql.refdata().theater(tid) != null)
+				break;
+		} catch (NumberFormatException e) {
+			// asked again below
+		}
+		System.out.println("There is no theater with that ID!");
+	} while (true);
 	System.out.println("");
 
-	q1 = "INSERT INTO Movies (mvid, title, rdate, country, description, duration, lang, genre) values (" 
-	+ mvid + ", '" + title + "', '" + releaseDate + "', '" + country + "', '" + description + "', " + 
-	duration + ", '" + lang + "', '" + genre + "' );";
-	esql.executeUpdate(q1);
+	final int theater = tid, seconds = duration;
+	//the movie, its show, where it plays and its schedule row appear together or not at all
+	esql.inTransaction(new Transaction<Integer>() {
+		public Integer run() throws SQLException {
+			String q1 = "INSERT INTO Movies (mvid, title, rdate, country, description, duration, lang, genre) values " 
+			+ "(?, ?, ?, ?, ?, ?, ?, ? );";
+			esql.executeUpdate(q1, mvid, title, releaseDate, country, description, seconds, lang, genre);
 
-	q2 = "INSERT INTO Shows (sid, mvid, sdate, sttime, edtime) values (" + sid + ", " + mvid + ", '" + 
-	sdate + "', '" + sttime + "', '" + edtime + "');";
-	esql.executeUpdate(q2);
+			String q2 = "INSERT INTO Shows (sid, mvid, sdate, sttime, edtime) values (?, ?, ?, ?, ?);";
+			esql.executeUpdate(q2, sid, mvid, sdate, sttime, edtime);
 
-	q3 = "INSERT INTO Plays (sid, tid) values (" + sid + ", " + tid + ");";
-	esql.executeUpdate(q3);
+			String q3 = "INSERT INTO Plays (sid, tid) values (?, ?);";
+			esql.executeUpdate(q3, sid, theater);
+			return esql.schedule().added(sid);
+		}
+	});
+	esql.refdata().changed("movies", mvid);
 
 
 	}//end option 3
 
 
 	public static void CancelPendingBookings(Ticketmaster esql) {// 4
-		String query;
-		query = "UPDATE Bookings SET status = 'cancelled' WHERE status = 'pending';";
-		try {
-			esql.executeUpdate(query);
-		} catch (SQLException e) {
-			// TODO Auto-generated catch block
-			e.printStackTrace();
-		}
-
-		System.out.println("\n Pending Bookings cancelled\n");		
-
+		if (esql.maintenance().submit(MaintenanceJobs.CANCEL_PENDING) == null)
+			System.out.println("\n Pending Bookings are already being cancelled\n");
+		else
+			System.out.println("\n Cancelling Pending Bookings in the background\n");
 	}
 
 	
@@ -572,7 +1033,7 @@ public class Ticketmaster {
                 System.out.println("What is the email that the booking was made with? ");
                 String email = in.readLine();
 
-                List<List<String>> confirmEmail = esql.executeQueryAndReturnResult("select email from bookings where email = '" + email + "';");
+                List<List<String>> confirmEmail = esql.executeQueryAndReturnResult("select email from bookings where email = ?;", email);
 
                 if(confirmEmail != null && confirmEmail.isEmpty()) {
                         System.out.println("We coudn't find any bookings with that email! Try again.");
@@ -580,59 +1041,56 @@ public class Ticketmaster {
                 }
 
                 System.out.println("Here are the bookings on your account: ");
-                esql.executeQueryAndPrintResult("select * from bookings where email = '" + email + "';");
+                printPages(esql, "select * from bookings where email = ?;", "bid", email);
 
 
                 System.out.println("What is the booking id you would like to change? ");
                 String bid = in.readLine();
 
-                List<List<String>> bookingid = esql.executeQueryAndReturnResult("select bid from bookings where bid = '" + bid + "';");
-                if(bookingid != null && bookingid.isEmpty()) {
+                List<List<String>> booking = esql.executeQueryAndReturnResult("select sid from bookings where bid = ? and email = ?;", bid, email);
+                if(booking.isEmpty()) {
                         System.out.println("Invalid booking id! Try again.");
                         return;
                 }
+                long sid = Long.parseLong(booking.get(0).get(0));
+
+                //the booked seats, then the full old -> new mapping before anything is changed
+                List<List<String>> seats = esql.executeQueryAndReturnResult("select cs.sno, cs.stype from showseats ss join cinemaseats cs on cs.csid = ss.csid where ss.bid = ? order by cs.sno;", bid);
+                System.out.println("These seats are currently free: ");
+                esql.seats().printFree(sid, true);
+
+                List<Integer> oldSeats = new ArrayList<Integer>();
+                List<Integer> newSeats = new ArrayList<Integer>();
+                for(List<String> seat : seats) {
+                        System.out.println("Replace seat [" + seat.get(0) + ": " + seat.get(1) + "] with seat number (leave empty to keep it): ");
+                        String replace = in.readLine().trim();
+                        if(replace.isEmpty())
+                                continue;
+                        oldSeats.add(Integer.parseInt(seat.get(0)));
+                        newSeats.add(Integer.parseInt(replace));
+                }
+                if(oldSeats.isEmpty()) {
+                        System.out.println("No seats changed.");
+                        return;
+                }
 
-                String sid = esql.executeQueryAndReturnResult("select sid from bookings where bid = '" + bid + "';").get(0).get(0);
-                String tid = esql.executeQueryAndReturnResult("select tid from plays where sid in (select sid from bookings where sid = '" + sid + "');").get(0).get(0);
-
-                //how many seats are on the reservation
-                int numseats = Integer.parseInt(esql.executeQueryAndReturnResult("select seats from bookings where bid = '" + bid + "';").get(0).get(0));
-                String maxseat = esql.executeQueryAndReturnResult("select max(sno) from cinemaseats where tid = '" + tid + "';").get(0).get(0);
-                List<List<String>> seats = esql.executeQueryAndReturnResult("select tid, sno, stype, csid from cinemaseats where csid in (select csid from showseats where bid = " + bid + ");");
-
-                //run through all booked seats and change
-                for(int i = 0; i < numseats; i++) {
-                        String seat = seats.get(i).get(0) + ", " + seats.get(i).get(1) + ": " + seats.get(i).get(2);
-                        String csid = seats.get(i).get(3);
-                        System.out.println("Replace seat [" + seat + "]. These seats are currently free: ");
-                        esql.executeQueryAndPrintResult("select sno, stype from cinemaseats where tid = '" + tid + "' and csid not in (select csid from showseats);");
-
-
-                        System.out.println("Which seat would you like to reserve?");
-                        String replace = in.readLine();
-
-                        //checking that seat selection is in range
-                        if(Integer.parseInt(replace) > Integer.parseInt(maxseat)) {
-                                System.out.println("There is no seat with that number in the theater.");
-                                i--;
-                                break;
-                        }
-
- 			String newcsid = esql.executeQueryAndReturnResult("select csid from cinemaseats where tid = '" + tid + "' and sno = '" + replace + "';").get(0).get(0);
-                        String oldtype = esql.executeQueryAndReturnResult("select stype from cinemaseats where csid = '" + csid + "';").get(0).get(0);
-                        String newtype = esql.executeQueryAndReturnResult("select stype from cinemaseats where csid = '" + newcsid + "';").get(0).get(0);
-
-                        //checking that seat is exchangable
-                        if(!oldtype.equals(newtype)) {
-                                System.out.println("You can only exchange seats that are the same price as the original.");
-                                i--;
-                                break;
-                        }
-
-                        String q = "update showseats set csid = '" + newcsid + "' where csid = '" + csid + "';";
-                        esql.executeUpdate(q);
+                int[] oldSnos = new int[oldSeats.size()];
+                int[] newSnos = new int[newSeats.size()];
+                for(int i = 0; i < oldSnos.length; i++) {
+                        oldSnos[i] = oldSeats.get(i);
+                        newSnos[i] = newSeats.get(i);
                 }
 
+                //all seats move in one transaction, or none do
+                try {
+                        esql.exchanges().exchange(Long.parseLong(bid), oldSnos, newSnos);
+                } catch(ReservationEngine.SeatUnavailableException e) {
+                        System.out.println("Sorry, " + e.getMessage() + " No seats were changed.");
+                        return;
+                } catch(IllegalArgumentException e) {
+                        System.out.println("Sorry, " + e.getMessage() + ". No seats were changed.");
+                        return;
+                }
                 System.out.println("Seat reservations sucessfully updated!");
 
 	}
@@ -643,57 +1101,42 @@ public class Ticketmaster {
                 System.out.println("What is the email that the booking was made with? ");
                 String email = in.readLine();
 
-                List<List<String>> confirmEmail = esql.executeQueryAndReturnResult("select email from bookings where email = '" + email + "';");
-
-                if(confirmEmail != null && confirmEmail.isEmpty()) {
+                System.out.println("Here are the bookings on your account: ");
+                if(printPages(esql, "select * from bookings where email = ?;", "bid", email) == 0) {
                         System.out.println("We coudn't find any bookings with that email! Try again.");
                         return;
                 }
 
-                System.out.println("Here are the bookings on your account: ");
-                esql.executeQueryAndPrintResult("select * from bookings where email = '" + email + "';");
-
 
                 System.out.println("Which bid would you like to cancel? ");
-                String bid = in.readLine();
-
-                List<List<String>> bookingid = esql.executeQueryAndReturnResult("select bid from bookings where bid = '" + bid + "';");
-                if(bookingid != null && bookingid.isEmpty()) {
+                long bid;
+                try {
+                        bid = Long.parseLong(in.readLine().trim());
+                } catch(NumberFormatException e) {
                         System.out.println("Invalid booking id! Try again.");
                         return;
                 }
 
-                String status = esql.executeQueryAndReturnResult("select status from bookings where bid = '" + bid + "';").get(0).get(0);
-
-                if(status.equals("Paid")) {
-                        //remove payment from db
-                        String q = "delete from payments where bid = '" + bid + "';";
-                        esql.executeUpdate(q);
+                //the payment, the seats and the status change go in one batched transaction
+                PaymentPipeline.Refund refund = esql.payments().cancelAndWait(bid, email);
+                if(refund.outcome() == PaymentPipeline.Refund.Outcome.NOT_FOUND) {
+                        System.out.println("Invalid booking id! Try again.");
+                        return;
                 }
-
-                if(!status.equals("Cancelled")) {
-                        //change status to cancelled
-                        String q = "update bookings set status = 'Cancelled' where bid = '" + bid + "';";
-                        esql.executeUpdate(q);
+                if(refund.outcome() == PaymentPipeline.Refund.Outcome.ALREADY_PROCESSED) {
+                        System.out.println("This booking was already cancelled.");
+                        return;
                 }
-
-
+                if(refund.amount() != null)
+                        System.out.println("Refunded " + refund.amount() + ".");
                 System.out.println("Your payment has been sucessfully been deleted.");
         }
 	
 	public static void ClearCancelledBookings(Ticketmaster esql) {// 7
-		String query;
-		query = "DELETE FROM Bookings WHERE status = 'cancelled';";
-		try {
-			esql.executeUpdate(query);
-		} catch (SQLException e) {
-			// TODO Auto-generated catch block
-			e.printStackTrace();
-
-			
-		}
-
-		System.out.println("\n Cancelled Bookings Removed \n");
+		if (esql.maintenance().submit(MaintenanceJobs.PURGE_CANCELLED) == null)
+			System.out.println("\n Cancelled Bookings are already being removed\n");
+		else
+			System.out.println("\n Removing Cancelled Bookings in the background\n");
 	}
 
 	public static void RemoveShowsOnDate(Ticketmaster esql) throws IOException, SQLException {// 8
@@ -721,7 +1164,7 @@ public class Ticketmaster {
 		((select sid from plays where tid in (select tid from theaters where cid in (select cid from cinemas where cname =  'AMC')))
 		); */
 
-		String date, cinema, q1, q2, q3;
+		String date, cinema;
 
 		System.out.print("Enter Date(MM/DD/YYYY): ");
 		date = in.readLine();
@@ -729,44 +1172,10 @@ public class Ticketmaster {
 		System.out.print("Enter Cinema: ");
 		cinema = in.readLine();
 
-		q1 = "delete from ShowSeats where sid in (select sid from shows where sdate = '" + date + "') and " + 
-		"sid in ((select sid from plays where tid in (select tid from theaters where cid in	" + 
-		"(select cid from cinemas where cname =  '" + cinema + "'))));";
-
-		q2 = "delete from plays where sid in (select sid from shows where sdate = '" + date + "') and " +
-		"sid in ((select sid from plays where tid in (select tid from theaters where cid in " + 
-		"(select cid from cinemas where cname =  '" + cinema + "'))));";
-
-		q3 = "delete from shows  where sid in (select sid from shows where sdate = '" + date + "') and sid in " +
-		"((select sid from plays where tid in (select tid from theaters where cid in " + 
-		"(select cid from cinemas where cname =  '" + cinema + "'))));";
-
-	
-		esql.executeUpdate(q1);
-		esql.executeUpdate(q2);
-		esql.executeUpdate(q3);	
-
-		String getBid = "select bid from bookings where sid in (select sid from shows where sdate = '" + date + "') and sid in " +
-		"((select sid from plays where tid in (select tid from theaters where cid in " +
-		"(select cid from cinemas where cname =  '" + cinema + "'))));";
-
-		List<List<String>> bidList = esql.executeQueryAndReturnResult(getBid);
-		for(int i = 0; i < bidList.size(); i++){
-			String status = esql.executeQueryAndReturnResult("select status from bookings where bid = '" + 
-							bidList.get(0).get(i) + "';").get(0).get(0);
-
-			if(status.equals("Paid")) {
-			//remove payment from db
-			    String q = "delete from payments where bid = '" + bidList.get(0).get(i) + "';";
-			    esql.executeUpdate(q);
-			}
-			
-			if(!status.equals("Cancelled")) {
-			//change status to cancelled
-			    String q = "update bookings set status = 'Cancelled' where bid = '" + bidList.get(0).get(i) + "';";
-			    esql.executeUpdate(q);
-			}			
-		}
+		ShowRemoval.Removed removed = esql.showRemoval().remove(date, cinema);
+		System.out.println(removed.shows() + " shows, " + removed.plays() + " plays and " + removed.seats()
+				+ " booked seats removed; " + removed.bookings() + " bookings cancelled, " + removed.payments()
+				+ " payments deleted.");
 		System.out.println("Shows on given date deleted ....\n");
 
 	}
@@ -778,12 +1187,15 @@ public class Ticketmaster {
                 System.out.println("Which movie would you like to look for?" );
                 String title = in.readLine();
 
-                esql.executeQueryAndPrintResult("select * from shows where mvid in (select mvid from movies where title = '" + title + "') and sid in (select sid from theaters where tname = '" + cinema + " Theaters 1');");
+                ShowQuery shows = new ShowQuery().select("s.sid", "s.mvid", "s.sdate", "s.sttime", "s.edtime").distinct()
+                                .movieTitle(title).cinemaName(cinema).orderBy("s.sid");
+                esql.executeQueryAndPrintResult(shows.sql(), shows.params());
 
                 System.out.println("Enter sid to track: ");
                 String sid = in.readLine();
 
-                esql.executeQueryAndPrintResult("select * from theaters where tid in (select tid from plays where sid = '" + sid + "');");
+                ShowQuery theaters = new ShowQuery().select("t.tid", "t.cid", "t.tname", "t.tseats").sid(Long.parseLong(sid));
+                esql.executeQueryAndPrintResult(theaters.sql(), theaters.params());
         }
 
 	public static void ListShowsStartingOnTimeAndDate(Ticketmaster esql) throws IOException, SQLException {// 10
@@ -800,26 +1212,28 @@ public class Ticketmaster {
 		startTime = in.readLine();
 		
 
-		String q = "SELECT title FROM movies WHERE mvid IN  (SELECT mvid FROM shows WHERE sdate = '" + date + "' and sttime = '" 
-		+ startTime + "')";
-
 		System.out.println("");
-		int result = esql.executeQueryAndPrintResult(q);
+		int result = esql.executeQueryAndPrintResult(ShowSchedule.STARTING_AT, date, startTime);
 		System.out.println("\n");
 	
 	}
 
 	public static void ListMovieTitlesContainingLoveReleasedAfter2010(Ticketmaster esql) throws SQLException {// 11
-		//select extract(year from rdate) from movies where mvid = 1;
-
-		int result = esql.executeQueryAndPrintResult("select title from movies where title like '%Love%' and extract(year from rdate) > 2010  ;");
-		
-
-		
+		//released after 2010 is a range on rdate, so the rdate index can serve it
+		int limit = Integer.getInteger("search.limit", 1000);
+		List<ReferenceDataCache.Movie> movies = esql.search().search("Love", java.sql.Date.valueOf("2011-01-01"), null, limit);
+
+		if (!movies.isEmpty())
+			System.out.println("title\t");
+		for (ReferenceDataCache.Movie movie : movies)
+			System.out.println(movie.name() + "\t");
 	}
 
-	public static void ListUsersWithPendingBooking(Ticketmaster esql) throws SQLException {//12
-                esql.executeQueryAndPrintResult("select fname, lname, email from users where email in (select email from bookings where status = 'Pending');");
+	public static void ListUsersWithPendingBooking(Ticketmaster esql) throws IOException, SQLException {//12
+                //the pending users come from the in-memory counts, so Bookings is not searched
+                List<String> pending = esql.pending().users();
+                printPages(esql, "select fname, lname, email from users where email = any(?);", "email",
+                                esql.createArray("varchar", pending.toArray()));
         }
 
 	public static void ListMovieAndShowInfoAtCinemaInDateRange(Ticketmaster esql) throws IOException, SQLException {// 13
@@ -843,14 +1257,16 @@ public class Ticketmaster {
 		System.out.println("End Date(MM/DD/YYYY): ");
 		date2 = in.readLine();
 
-		String q = "select m1.title, m1.duration, s1.sdate, s1.sttime from movies m1, shows s1 where m1.title = '"
-		+ movieTitle + "' and sdate in (select s2.sdate from shows s2 where s2.sdate between '" + date1 + "' and'" 
-		+ date2 + "' and s2.mvid = (select m2.mvid from movies m2 where m2.title = '" + movieTitle + "')) and" 
-		+ " sid in (select p1.sid from plays p1 where p1.tid in (select t1.tid from theaters t1 where " + 
-		"t1.cid in (select c1.cid from cinemas c1 where c1.cname = '" + theaterName + "')));";
+		//resolve the title from the cache so the listing filters on the indexed mvid
+		ReferenceDataCache.Movie movie = esql.refdata().movieByTitle(movieTitle);
+		if(movie == null) {
+			System.out.println("Not a valid movie title! Try again.");
+			return;
+		}
 
 		System.out.println("");
-		int result = esql.executeQueryAndPrintResult(q);
+		int result = esql.executeQueryAndPrintResult(ShowSchedule.AT_CINEMA_BETWEEN, theaterName, date1, date2,
+				movie.id());
 		System.out.println("\n");
 
 
@@ -860,27 +1276,20 @@ public class Ticketmaster {
                 System.out.println("Enter user email: ");
                 String email = in.readLine();
 
-                List<List<String>> bookings = esql.executeQueryAndReturnResult("select bid, bdatetime from bookings where email = '" + email + "';");
-                //System.out.println("get bookings info");
-                List<List<String>> titles = esql.executeQueryAndReturnResult("select title from movies where mvid in (select mvid from shows where sid in (select sid from bookings where email = '" + email + "'));");
-                //System.out.println("get titles info");
-                List<List<String>> theatername = esql.executeQueryAndReturnResult("select tname from theaters where tid in (select tid from plays where sid in (select sid from bookings where email = '" + email + "'));");
-                //System.out.println("get theater info");
-                List<List<String>> csids = esql.executeQueryAndReturnResult("select sno from cinemaseats where csid in (select csid from showseats where bid > 0 and bid in (select bid from bookings where email = '" + email + "'));");
-                //System.out.println("get csids");
-
-                int numbookings = bookings.size();
+                int pageSize = Integer.getInteger("itinerary.pageSize", 50);
 
                 System.out.println("Title\tDate and Time\t\t\tTheater Name\t\t\tCinema Seat Number");
-                for(int i = 0; i < numbookings; i++) {
-                        String bid = bookings.get(i).get(0);
-                        String title = titles.get(i).get(0);
-                        String datetime = bookings.get(i).get(1);
-                        String theater = theatername.get(i).get(0);
-                        String csid = csids.get(i).get(0);
-
-                        System.out.println(title + "\t" + datetime + "\t\t" + theater + "\t\t" + csid);
-                }
+                //one joined query per page of bookings, continuing after the last bid seen
+                long afterBid = 0;
+                List<BookingView> page;
+                do {
+                        page = esql.itinerary().page(email, afterBid, pageSize);
+                        for(BookingView booking : page) {
+                                String datetime = booking.showDate() + " " + booking.startTime();
+                                System.out.println(booking.title() + "\t" + datetime + "\t\t" + booking.theater() + "\t\t" + booking.seatList());
+                                afterBid = booking.bid();
+                        }
+                } while(page.size() == pageSize);
 	}
 	
 }
@@ -1,3 +1,4 @@
+DROP TABLE IF EXISTS seat_holds;
 DROP TABLE IF EXISTS Plays;
 DROP TABLE IF EXISTS ShowSeats;
 DROP TABLE IF EXISTS Payments;
@@ -9,6 +10,16 @@ DROP TABLE IF EXISTS CinemaSeats;
 DROP TABLE IF EXISTS Theaters;
 DROP TABLE IF EXISTS Cinemas;
 DROP TABLE IF EXISTS Cities;
+DROP TABLE IF EXISTS maintenance_jobs;
+DROP TABLE IF EXISTS show_schedule;
+DROP TABLE IF EXISTS payment_cancellations;
+DROP TABLE IF EXISTS schema_version;  -- indexes and other migrations go with the tables
+
+DROP SEQUENCE IF EXISTS bookings_bid_seq;
+DROP SEQUENCE IF EXISTS showseats_ssid_seq;
+DROP SEQUENCE IF EXISTS movies_mvid_seq;
+DROP SEQUENCE IF EXISTS shows_sid_seq;
+DROP SEQUENCE IF EXISTS payments_pid_seq;
 
 -- Entities
 
@@ -128,6 +139,17 @@ CREATE TABLE Plays (
 );
 
 
+-- Key sequences
+-- Each nextval() reserves a block of 50 ids for the application (see
+-- IdAllocator.BLOCK_SIZE); keep the increments in sync with it.
+
+CREATE SEQUENCE bookings_bid_seq INCREMENT BY 50 MINVALUE 0 START 0;
+CREATE SEQUENCE showseats_ssid_seq INCREMENT BY 50 MINVALUE 0 START 0;
+CREATE SEQUENCE movies_mvid_seq INCREMENT BY 50 MINVALUE 0 START 0;
+CREATE SEQUENCE shows_sid_seq INCREMENT BY 50 MINVALUE 0 START 0;
+CREATE SEQUENCE payments_pid_seq INCREMENT BY 50 MINVALUE 0 START 0;
+
+
 ----------------------------
 -- INSERT DATA STATEMENTS --
 ----------------------------
@@ -239,3 +261,14 @@ COPY Plays (
 )
 FROM 'Plays.csv'
 WITH DELIMITER ',';
+
+
+------------------------
+-- SEED KEY SEQUENCES --
+------------------------
+
+SELECT setval('bookings_bid_seq', (SELECT coalesce(max(bid), 0) FROM Bookings));
+SELECT setval('showseats_ssid_seq', (SELECT coalesce(max(ssid), 0) FROM ShowSeats));
+SELECT setval('movies_mvid_seq', (SELECT coalesce(max(mvid), 0) FROM Movies));
+SELECT setval('shows_sid_seq', (SELECT coalesce(max(sid), 0) FROM Shows));
+SELECT setval('payments_pid_seq', (SELECT coalesce(max(pid), 0) FROM Payments));